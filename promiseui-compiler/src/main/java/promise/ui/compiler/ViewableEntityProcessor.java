@@ -0,0 +1,347 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates a ViewableFactory for every type annotated with ViewableEntity and an index
+ * registering all of them, so the adapter never creates view holders through reflection.
+ * Every module gets its own index, listed as a service of ViewableFactories.Index. Its name is
+ * derived from the module's entities unless given with the promise.ui.indexName option
+ */
+@SupportedAnnotationTypes(ViewableEntityProcessor.VIEWABLE_ENTITY)
+@SupportedOptions(ViewableEntityProcessor.INDEX_NAME_OPTION)
+public class ViewableEntityProcessor extends AbstractProcessor {
+
+  static final String VIEWABLE_ENTITY = "promise.ui.adapter.ViewableEntity";
+  static final String INDEX_NAME_OPTION = "promise.ui.indexName";
+  static final String INDEX_SERVICE = "promise.ui.adapter.ViewableFactories$Index";
+  private static final String VIEW = "android.view.View";
+  private static final String INDEX_PREFIX = "ViewableFactoryIndex_";
+  private static final String FACTORY_SUFFIX = "_ViewableFactory";
+
+  /**
+   * entity type to its generated factory, both as canonical names, sorted so the index does not
+   * depend on the order the entities are compiled in
+   */
+  private final Map<String, String> factories = new TreeMap<>();
+  private boolean indexWritten = false;
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    TypeElement annotation = processingEnv.getElementUtils().getTypeElement(VIEWABLE_ENTITY);
+    boolean found = false;
+    if (annotation != null) for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+      found = true;
+      if (element.getKind() != ElementKind.CLASS) {
+        error(element, "@ViewableEntity can only be applied to classes");
+        continue;
+      }
+      generateFactory((TypeElement) element, annotation);
+    }
+    // the index is written once the round compiling the generated factories finds no more entities
+    if (!found && !indexWritten && !factories.isEmpty()) {
+      indexWritten = true;
+      generateIndex();
+    }
+    return false;
+  }
+
+  private void generateFactory(TypeElement entity, TypeElement annotation) {
+    AnnotationMirror mirror = null;
+    for (AnnotationMirror candidate : entity.getAnnotationMirrors())
+      if (candidate.getAnnotationType().asElement().equals(annotation)) mirror = candidate;
+    if (mirror == null) return;
+    Object layout = null;
+    TypeMirror viewHolder = null;
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+        processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+      String name = entry.getKey().getSimpleName().toString();
+      if (name.equals("layoutResource")) layout = entry.getValue().getValue();
+      else if (name.equals("viewHolderClass")) viewHolder = (TypeMirror) entry.getValue().getValue();
+    }
+    if (!(layout instanceof Integer) || !(viewHolder instanceof DeclaredType)) {
+      error(entity, "@ViewableEntity needs a constant layoutResource and a viewHolderClass");
+      return;
+    }
+    TypeElement holder = (TypeElement) ((DeclaredType) viewHolder).asElement();
+    if (!hasEntityConstructor(holder, entity)) {
+      error(entity, holder.getQualifiedName() + " must have a public constructor accepting "
+          + entity.getQualifiedName());
+      return;
+    }
+    Types types = processingEnv.getTypeUtils();
+    String packageName = packageOf(entity);
+    // generic entities are named with wildcards, the holder may expect a narrower type
+    DeclaredType entityType = wildcardType(entity);
+    String entityName = entityType.toString();
+    TypeMirror parameter = entityParameter(holder, entity);
+    // the holder may expect a narrower type, a generic holder infers its type arguments from it
+    String parameterName = holder.getTypeParameters().isEmpty() ? parameter.toString() : withWildcards(parameter);
+    boolean cast = !parameterName.equals(entityName) &&
+        (!holder.getTypeParameters().isEmpty() || !types.isAssignable(entityType, parameter));
+    String argument = cast ? "(" + parameterName + ") t" : "t";
+    String factoryName = binaryName(entity, packageName) + FACTORY_SUFFIX;
+    String source = "// Generated by the promise ui compiler, do not modify\n" +
+        (packageName.isEmpty() ? "" : "package " + packageName + ";\n") +
+        "\n" +
+        "public final class " + factoryName + " implements promise.ui.adapter.ViewableFactory<" + entityName + "> {\n" +
+        "  @Override\n" +
+        "  public int layout() {\n" +
+        "    return " + layout + ";\n" +
+        "  }\n" +
+        "\n" +
+        "  @Override\n" +
+        (cast ? "  @SuppressWarnings(\"unchecked\")\n" : "") +
+        "  public promise.ui.adapter.ViewHolder create(" + entityName + " t) {\n" +
+        "    return new " + holder.getQualifiedName() +
+        (holder.getTypeParameters().isEmpty() ? "" : "<>") + "(" + argument + ");\n" +
+        "  }\n" +
+        "\n" +
+        slots(holder, packageName) +
+        "}\n";
+    String factory = packageName.isEmpty() ? factoryName : packageName + "." + factoryName;
+    if (write(factory, source, entity))
+      factories.put(types.erasure(entityType).toString(), factory);
+  }
+
+  private void generateIndex() {
+    String index = indexName();
+    int dot = index.lastIndexOf('.');
+    String packageName = dot < 0 ? "" : index.substring(0, dot);
+    String simpleName = index.substring(dot + 1);
+    StringBuilder source = new StringBuilder()
+        .append("// Generated by the promise ui compiler, do not modify\n")
+        .append(packageName.isEmpty() ? "" : "package " + packageName + ";\n")
+        .append("\n")
+        .append("public final class ").append(simpleName)
+        .append(" implements promise.ui.adapter.ViewableFactories.Index {\n")
+        .append("  @Override\n")
+        .append("  public void register(java.util.Map<Class<?>, promise.ui.adapter.ViewableFactory<?>> factories) {\n");
+    for (Map.Entry<String, String> entry : factories.entrySet())
+      source.append("    factories.put(").append(entry.getKey()).append(".class, new ")
+          .append(entry.getValue()).append("());\n");
+    source.append("  }\n")
+        .append("}\n");
+    if (write(index, source.toString())) writeService(index);
+  }
+
+  /**
+   * @return the index name given as option, or one in the package of the first entity
+   * made unique by the names of the entities
+   */
+  private String indexName() {
+    String option = processingEnv.getOptions().get(INDEX_NAME_OPTION);
+    if (option != null && !option.isEmpty()) return option;
+    String first = factories.values().iterator().next();
+    int dot = first.lastIndexOf('.');
+    String hash = Integer.toHexString(factories.keySet().toString().hashCode());
+    return (dot < 0 ? "" : first.substring(0, dot + 1)) + INDEX_PREFIX + hash;
+  }
+
+  /**
+   * lists the index as a service so ViewableFactories finds the index of every module
+   */
+  private void writeService(String index) {
+    String name = "META-INF/services/" + INDEX_SERVICE;
+    try (Writer writer = processingEnv.getFiler()
+        .createResource(StandardLocation.CLASS_OUTPUT, "", name).openWriter()) {
+      writer.write(index + "\n");
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "could not write " + name + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the name of the type with the type variables in its arguments replaced by wildcards
+   * and erased elsewhere
+   */
+  private String withWildcards(TypeMirror type) {
+    if (!(type instanceof DeclaredType)) return processingEnv.getTypeUtils().erasure(type).toString();
+    List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+    if (arguments.isEmpty()) return type.toString();
+    StringBuilder name = new StringBuilder(processingEnv.getTypeUtils().erasure(type).toString()).append('<');
+    for (int i = 0; i < arguments.size(); i++) {
+      TypeMirror argument = arguments.get(i);
+      if (i > 0) name.append(',');
+      if (argument.getKind() == TypeKind.TYPEVAR) name.append('?');
+      else if (argument.getKind() == TypeKind.DECLARED) name.append(withWildcards(argument));
+      else name.append(argument);
+    }
+    return name.append('>').toString();
+  }
+
+  private DeclaredType wildcardType(TypeElement type) {
+    Types types = processingEnv.getTypeUtils();
+    int count = type.getTypeParameters().size();
+    if (count == 0) return (DeclaredType) type.asType();
+    WildcardType[] wildcards = new WildcardType[count];
+    for (int i = 0; i < count; i++) wildcards[i] = types.getWildcardType(null, null);
+    return types.getDeclaredType(type, wildcards);
+  }
+
+  /**
+   * generates the view slots of the holder, or a null slots method when a view field
+   * can not be reached from the factory
+   */
+  private String slots(TypeElement holder, String packageName) {
+    List<VariableElement> fields = viewFields(holder, packageName);
+    if (fields == null) return "" +
+        "  @Override\n" +
+        "  public promise.ui.adapter.ViewSlots<promise.ui.adapter.ViewHolder> slots() {\n" +
+        "    return null;\n" +
+        "  }\n";
+    String holderName = wildcardType(holder).toString();
+    StringBuilder read = new StringBuilder();
+    StringBuilder write = new StringBuilder();
+    for (int i = 0; i < fields.size(); i++) {
+      VariableElement field = fields.get(i);
+      String name = field.getSimpleName().toString();
+      if (i > 0) read.append(", ");
+      read.append("holder.").append(name);
+      write.append("          holder.").append(name).append(" = (")
+          .append(processingEnv.getTypeUtils().erasure(field.asType())).append(") views[").append(i).append("];\n");
+    }
+    return "" +
+        "  private static final promise.ui.adapter.ViewSlots<promise.ui.adapter.ViewHolder> SLOTS =\n" +
+        "      new promise.ui.adapter.ViewSlots<promise.ui.adapter.ViewHolder>() {\n" +
+        "        @Override\n" +
+        "        public Object[] read(promise.ui.adapter.ViewHolder viewHolder) {\n" +
+        "          " + holderName + " holder = (" + holderName + ") viewHolder;\n" +
+        "          return new Object[]{" + read + "};\n" +
+        "        }\n" +
+        "\n" +
+        "        @Override\n" +
+        "        public void write(promise.ui.adapter.ViewHolder viewHolder, Object[] views) {\n" +
+        "          " + holderName + " holder = (" + holderName + ") viewHolder;\n" +
+        write +
+        "        }\n" +
+        "      };\n" +
+        "\n" +
+        "  @Override\n" +
+        "  public promise.ui.adapter.ViewSlots<promise.ui.adapter.ViewHolder> slots() {\n" +
+        "    return SLOTS;\n" +
+        "  }\n";
+  }
+
+  /**
+   * @return the view fields of the holder and its super classes,
+   * null when one of them is private, final or outside the factory package
+   */
+  private List<VariableElement> viewFields(TypeElement holder, String packageName) {
+    TypeElement view = processingEnv.getElementUtils().getTypeElement(VIEW);
+    if (view == null) return null;
+    List<VariableElement> fields = new ArrayList<>();
+    TypeElement current = holder;
+    while (current != null && !current.getQualifiedName().contentEquals(Object.class.getName())) {
+      for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+        Set<Modifier> modifiers = field.getModifiers();
+        if (modifiers.contains(Modifier.STATIC)) continue;
+        if (!processingEnv.getTypeUtils().isAssignable(field.asType(), view.asType())) continue;
+        if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) return null;
+        if (!modifiers.contains(Modifier.PUBLIC) && !packageOf(current).equals(packageName)) return null;
+        fields.add(field);
+      }
+      TypeMirror superclass = current.getSuperclass();
+      current = superclass instanceof DeclaredType ?
+          (TypeElement) ((DeclaredType) superclass).asElement() : null;
+    }
+    return fields;
+  }
+
+  private boolean hasEntityConstructor(TypeElement holder, TypeElement entity) {
+    if (holder.getEnclosingElement().getKind() != ElementKind.PACKAGE &&
+        !holder.getModifiers().contains(Modifier.STATIC)) return false;
+    return entityParameter(holder, entity) != null;
+  }
+
+  /**
+   * @return the parameter type of the public holder constructor accepting the entity, or null
+   */
+  private TypeMirror entityParameter(TypeElement holder, TypeElement entity) {
+    Types types = processingEnv.getTypeUtils();
+    for (ExecutableElement constructor : ElementFilter.constructorsIn(holder.getEnclosedElements())) {
+      if (!constructor.getModifiers().contains(Modifier.PUBLIC)) continue;
+      if (constructor.getParameters().size() != 1) continue;
+      TypeMirror parameter = constructor.getParameters().get(0).asType();
+      if (types.isAssignable(types.erasure(entity.asType()), types.erasure(parameter))) return parameter;
+    }
+    return null;
+  }
+
+  private String packageOf(TypeElement type) {
+    PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+    return packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+  }
+
+  /**
+   * simple name of the type joined with the names of its enclosing types
+   */
+  private String binaryName(TypeElement type, String packageName) {
+    String name = type.getQualifiedName().toString();
+    if (!packageName.isEmpty()) name = name.substring(packageName.length() + 1);
+    return name.replace('.', '_');
+  }
+
+  private boolean write(String name, String source, Element... originatingElements) {
+    try (Writer writer = processingEnv.getFiler().createSourceFile(name, originatingElements).openWriter()) {
+      writer.write(source);
+      return true;
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "could not write " + name + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+}
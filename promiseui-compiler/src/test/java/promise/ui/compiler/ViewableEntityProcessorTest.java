@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.compiler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ViewableEntityProcessorTest {
+
+  /**
+   * the parts of the runtime library the generated code uses
+   */
+  private static final String[][] LIBRARY = {
+      {"android.view.View", "package android.view; public class View {}"},
+      {"promise.ui.adapter.ViewHolder", "package promise.ui.adapter; public interface ViewHolder {}"},
+      {"promise.ui.adapter.ViewSlots", "package promise.ui.adapter;\n" +
+          "public interface ViewSlots<H> { Object[] read(H holder); void write(H holder, Object[] views); }"},
+      {"promise.ui.adapter.ViewableFactory", "package promise.ui.adapter;\n" +
+          "public interface ViewableFactory<T> { int layout(); ViewHolder create(T t); ViewSlots<ViewHolder> slots(); }"},
+      {"promise.ui.adapter.ViewableEntity", "package promise.ui.adapter;\n" +
+          "import java.lang.annotation.*;\n" +
+          "@Retention(RetentionPolicy.RUNTIME) @Target(ElementType.TYPE)\n" +
+          "public @interface ViewableEntity { int layoutResource(); Class<? extends ViewHolder> viewHolderClass(); }"},
+      {"promise.ui.adapter.ViewableFactories", "package promise.ui.adapter;\n" +
+          "import java.util.Map;\n" +
+          "public final class ViewableFactories {\n" +
+          "  public interface Index { void register(Map<Class<?>, ViewableFactory<?>> factories); }\n" +
+          "}"}
+  };
+
+  private static final String[] PLAIN = {"com.example.Plain", "package com.example;\n" +
+      "import promise.ui.adapter.*;\n" +
+      "@ViewableEntity(layoutResource = 1, viewHolderClass = PlainHolder.class)\n" +
+      "public class Plain {}\n" +
+      "class PlainHolder implements ViewHolder {\n" +
+      "  android.view.View title;\n" +
+      "  android.view.View icon;\n" +
+      "  public PlainHolder(Plain plain) {}\n" +
+      "}"};
+
+  private static final String[] BOX = {"com.example.Box", "package com.example;\n" +
+      "import promise.ui.adapter.*;\n" +
+      "@ViewableEntity(layoutResource = 2, viewHolderClass = Box.Holder.class)\n" +
+      "public class Box<A> {\n" +
+      "  public static class Holder implements ViewHolder {\n" +
+      "    private android.view.View hidden;\n" +
+      "    public Holder(Box<String> box) {}\n" +
+      "  }\n" +
+      "}"};
+
+  private static final String[] PAIR = {"com.example.pairs.Pair", "package com.example.pairs;\n" +
+      "import promise.ui.adapter.*;\n" +
+      "@ViewableEntity(layoutResource = 3, viewHolderClass = PairHolder.class)\n" +
+      "public class Pair<A, B> {}\n" +
+      "class PairHolder<A> implements ViewHolder {\n" +
+      "  public PairHolder(Pair<A, String> pair) {}\n" +
+      "}"};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+  private File classes;
+  private File sources;
+
+  private static JavaFileObject source(String[] source) {
+    URI uri = URI.create("string:///" + source[0].replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+    return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source[1];
+      }
+    };
+  }
+
+  /**
+   * compiles the entities with the library through the processor, warning about unchecked code
+   *
+   * @return whether the compilation succeeded
+   */
+  private boolean compile(List<String> options, String[]... entities) throws IOException {
+    classes = folder.newFolder();
+    sources = folder.newFolder();
+    List<JavaFileObject> units = new ArrayList<>();
+    for (String[] library : LIBRARY) units.add(source(library));
+    for (String[] entity : entities) units.add(source(entity));
+    List<String> arguments = new ArrayList<>(Arrays.asList("-Xlint:unchecked,rawtypes",
+        "-d", classes.getPath(), "-s", sources.getPath()));
+    arguments.addAll(options);
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    try (StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+      JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics, arguments, null, units);
+      task.setProcessors(Collections.singletonList(new ViewableEntityProcessor()));
+      return task.call();
+    }
+  }
+
+  private boolean compile(String[]... entities) throws IOException {
+    return compile(Collections.<String>emptyList(), entities);
+  }
+
+  private String generated(String name) throws IOException {
+    File file = new File(sources, name.replace('.', '/') + ".java");
+    assertTrue(name + " was not generated", file.isFile());
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  private String service() throws IOException {
+    File file = new File(classes, "META-INF/services/" + ViewableEntityProcessor.INDEX_SERVICE);
+    assertTrue(file.isFile());
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+  }
+
+  private List<String> messages(Diagnostic.Kind kind) {
+    List<String> messages = new ArrayList<>();
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+      if (diagnostic.getKind() == kind) messages.add(diagnostic.getMessage(null));
+    return messages;
+  }
+
+  @Test
+  public void factories_compileWithoutWarnings() throws IOException {
+    assertTrue(messages(Diagnostic.Kind.ERROR).toString(), compile(PLAIN, BOX, PAIR));
+    assertEquals(Collections.emptyList(), messages(Diagnostic.Kind.WARNING));
+    assertEquals(Collections.emptyList(), messages(Diagnostic.Kind.MANDATORY_WARNING));
+  }
+
+  @Test
+  public void factory_copiesTheViewFieldsOfTheHolder() throws IOException {
+    assertTrue(compile(PLAIN));
+    String factory = generated("com.example.Plain_ViewableFactory");
+    assertTrue(factory.contains("implements promise.ui.adapter.ViewableFactory<com.example.Plain>"));
+    assertTrue(factory.contains("return 1;"));
+    assertTrue(factory.contains("return new com.example.PlainHolder(t);"));
+    assertTrue(factory.contains("return new Object[]{holder.title, holder.icon};"));
+    assertTrue(factory.contains("holder.icon = (android.view.View) views[1];"));
+  }
+
+  @Test
+  public void factory_withPrivateViewFields_hasNoSlots() throws IOException {
+    assertTrue(compile(BOX));
+    String factory = generated("com.example.Box_ViewableFactory");
+    assertFalse(factory.contains("SLOTS"));
+    assertTrue(factory.contains("return null;"));
+  }
+
+  @Test
+  public void genericEntity_isReadWithWildcardsAndCastForTheHolder() throws IOException {
+    assertTrue(compile(BOX, PAIR));
+    String box = generated("com.example.Box_ViewableFactory");
+    assertTrue(box.contains("implements promise.ui.adapter.ViewableFactory<com.example.Box<?>>"));
+    assertTrue(box.contains("new com.example.Box.Holder((com.example.Box<java.lang.String>) t)"));
+    // a generic holder infers its type arguments from the cast entity
+    String pair = generated("com.example.pairs.Pair_ViewableFactory");
+    assertTrue(pair.contains("implements promise.ui.adapter.ViewableFactory<com.example.pairs.Pair<?,?>>"));
+    assertTrue(pair.contains("new com.example.pairs.PairHolder<>((com.example.pairs.Pair<?,java.lang.String>) t)"));
+  }
+
+  @Test
+  public void index_registersEveryFactoryAndIsListedAsService() throws Exception {
+    assertTrue(compile(PAIR, PLAIN, BOX));
+    String name = service();
+    assertTrue(name, name.startsWith("com.example.ViewableFactoryIndex_"));
+    String index = generated(name);
+    int box = index.indexOf("factories.put(com.example.Box.class, new com.example.Box_ViewableFactory());");
+    int plain = index.indexOf("factories.put(com.example.Plain.class, new com.example.Plain_ViewableFactory());");
+    int pair = index.indexOf("factories.put(com.example.pairs.Pair.class, new com.example.pairs.Pair_ViewableFactory());");
+    assertTrue(box >= 0 && box < plain && plain < pair);
+    // the runtime finds the index with a service loader
+    try (URLClassLoader loader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, null)) {
+      Class<?> indexType = loader.loadClass("promise.ui.adapter.ViewableFactories$Index");
+      Iterator<?> indexes = java.util.ServiceLoader.load(indexType, loader).iterator();
+      Object found = indexes.next();
+      assertFalse(indexes.hasNext());
+      Map<Class<?>, Object> factories = new HashMap<>();
+      Method register = indexType.getMethod("register", Map.class);
+      register.invoke(found, factories);
+      assertEquals(3, factories.size());
+      assertEquals("com.example.Box_ViewableFactory",
+          factories.get(loader.loadClass("com.example.Box")).getClass().getName());
+    }
+  }
+
+  @Test
+  public void indexName_doesNotDependOnTheCompileOrder() throws IOException {
+    assertTrue(compile(PLAIN, BOX, PAIR));
+    String name = service();
+    assertTrue(compile(PAIR, BOX, PLAIN));
+    assertEquals(name, service());
+    assertTrue(compile(PLAIN));
+    assertFalse(name.equals(service()));
+  }
+
+  @Test
+  public void indexName_canBeGivenAsOption() throws IOException {
+    assertTrue(compile(Collections.singletonList("-A" + ViewableEntityProcessor.INDEX_NAME_OPTION + "=com.other.Index"),
+        PLAIN));
+    assertEquals("com.other.Index", service());
+    assertTrue(generated("com.other.Index").contains("public final class Index implements"));
+  }
+
+  @Test
+  public void holderWithoutEntityConstructor_isAnError() throws IOException {
+    String[] entity = {"com.example.Broken", "package com.example;\n" +
+        "import promise.ui.adapter.*;\n" +
+        "@ViewableEntity(layoutResource = 4, viewHolderClass = BrokenHolder.class)\n" +
+        "public class Broken {}\n" +
+        "class BrokenHolder implements ViewHolder { public BrokenHolder(String text) {} }"};
+    assertFalse(compile(entity));
+    assertEquals(Collections.singletonList(
+        "com.example.BrokenHolder must have a public constructor accepting com.example.Broken"),
+        messages(Diagnostic.Kind.ERROR));
+  }
+}
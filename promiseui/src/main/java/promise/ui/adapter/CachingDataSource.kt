@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import android.os.SystemClock
+import promise.commons.model.List
+import promise.commons.tx.PromiseResult
+import java.util.*
+
+/**
+ * Keeps the most recently used pages of a [DataSource] in memory.
+ * Pages are cached by skip and take and expire after [ttlMillis], concurrent requests for
+ * a page that is loading wait for that load instead of starting another one, and all get its error
+ * when it fails.
+ * Keep the instance outside the screen, for example in a view model, so recreated screens reuse it
+ *
+ * @param maxPages number of pages kept
+ * @param ttlMillis time a page is served from memory after it was loaded
+ */
+class CachingDataSource<T> @JvmOverloads constructor(private val dataSource: DataSource<T>,
+                                                     private val maxPages: Int = 32,
+                                                     private val ttlMillis: Long = 5 * 60 * 1000L) : DataSource<T> {
+
+  private class Page<T>(val items: kotlin.collections.List<T>, val loadedAt: Long)
+
+  /**
+   * a load of the wrapped data source and the responses waiting for it
+   */
+  private class Load<T>(val generation: Int, val waiting: ArrayList<PromiseResult<List<T>, *>>)
+
+  private val lock = Any()
+  private val pages = object : LinkedHashMap<Long, Page<T>>(maxPages, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, Page<T>>?): Boolean =
+        size > maxPages
+  }
+  private val loading = HashMap<Long, Load<T>>()
+  /**
+   * incremented by every invalidation, loads started before it are neither cached nor delivered
+   */
+  private var generation = 0
+  private var hits = 0L
+  private var misses = 0L
+
+  internal var clock: () -> Long = { SystemClock.elapsedRealtime() }
+
+  /**
+   * number of loads answered from memory or by joining a load already running
+   */
+  fun hits(): Long = synchronized(lock) { hits }
+
+  /**
+   * number of loads passed to the wrapped data source
+   */
+  fun misses(): Long = synchronized(lock) { misses }
+
+  override fun load(response: PromiseResult<List<T>, *>, skip: Int, take: Int) {
+    val key = (skip.toLong() shl 32) or (take.toLong() and 0xFFFFFFFFL)
+    var started: Load<T>? = null
+    val cached = synchronized(lock) {
+      val page = pages[key]
+      if (page != null && clock() - page.loadedAt < ttlMillis) {
+        hits++
+        page
+      } else {
+        if (page != null) pages.remove(key)
+        val running = loading[key]
+        if (running != null) {
+          hits++
+          running.waiting.add(response)
+          return
+        }
+        misses++
+        started = Load(generation, arrayListOf(response)).also { loading[key] = it }
+        null
+      }
+    }
+    if (cached != null) {
+      response.response(copy(cached.items))
+      return
+    }
+    val shared = started!!
+    dataSource.load(PromiseResult<List<T>, Throwable>()
+        .withCallback { items ->
+          val current = synchronized(lock) {
+            if (loading[key] === shared) loading.remove(key)
+            val current = shared.generation == generation
+            if (current) pages[key] = Page(ArrayList(items), clock())
+            current
+          }
+          // every receiver gets its own list since adapters may keep or change it
+          if (current) shared.waiting.forEach { it.response(copy(items)) }
+          // the page may have changed since this load started, it is loaded again for them
+          else shared.waiting.forEach { load(it, skip, take) }
+        }
+        .withErrorCallback { error ->
+          synchronized(lock) { if (loading[key] === shared) loading.remove(key) }
+          // retrying is left to the callers, one failure does not turn into a load per waiting response
+          shared.waiting.forEach { fail(it, error) }
+        }, skip, take)
+  }
+
+  private fun fail(response: PromiseResult<List<T>, *>, error: Throwable) =
+      (response as PromiseResult<List<T>, Throwable>).error(error)
+
+  /**
+   * drops every cached page, loads already running are not cached and load again for their callers
+   */
+  fun invalidate() {
+    synchronized(lock) {
+      generation++
+      pages.clear()
+      loading.clear()
+    }
+  }
+
+  private fun copy(items: Collection<T>): List<T> = List<T>().apply { addAll(items) }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter;
+
+import promise.commons.tx.PromiseResult;
+
+/**
+ * Data source knowing how many items it holds, lets the adapter show every row up front
+ * and load only the pages that are scrolled to
+ */
+public interface CountedDataSource<T> extends DataSource<T> {
+
+    /**
+     * @param response receives the total number of items
+     */
+    void count(PromiseResult<Integer, ?> response);
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter;
+
+import android.view.View;
+
+/**
+ * Implemented by viewables and view holders with optional heavy work, such as loading images
+ * or formatting rich text, that the adapter runs from UIJobScheduler after the item is bound
+ */
+public interface DeferredBinder {
+  void bindDeferred(View view, Object args);
+}
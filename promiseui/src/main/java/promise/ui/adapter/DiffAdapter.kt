@@ -31,7 +31,6 @@ import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
 import promise.commons.data.log.LogUtil
 import promise.commons.model.List
-import promise.commons.tx.PromiseResult
 import promise.commons.util.Conditions
 import promise.ui.UIJobScheduler
 import promise.ui.Viewable
@@ -58,7 +57,10 @@ open class DiffAdapter<T : Any>(list: List<T>,
 
   private var dataSource: DataSource<T>? = null
   private var loadingView: LoadingViewable? = null
+  // the loader is kept out of the list and shown after its last item
+  private var loaderShown = false
   private var visibleThreshold = 10
+  private var paginationListener: PaginationListener<T>? = null
 
   private lateinit var originalList: List<T>
 
@@ -142,9 +144,8 @@ open class DiffAdapter<T : Any>(list: List<T>,
   }
 
   override fun getItemViewType(position: Int): Int {
-    var viewableInstance = list!![position]
-    if (viewableInstance is LoadingViewable) return TYPE_LOADING
-    viewableInstance = viewableInstance as ViewableInstance<T>
+    if (loaderShown && position == indexer.size()) return TYPE_LOADING
+    val viewableInstance = list!![position] as ViewableInstance<T>
     if (viewableClasses != null) {
       val tClass = viewableInstance.t.javaClass
       if (viewableClasses!!.containsKey(tClass.name)) {
@@ -209,32 +210,41 @@ open class DiffAdapter<T : Any>(list: List<T>,
     }
 
     if (dataSource != null) {
-      recyclerView.addOnScrollListener(PaginationListener(this,
-          dataSource!!, recyclerView.layoutManager!!, visibleThreshold))
-      addLoadingView()
-      dataSource!!.load(PromiseResult<List<T>, Throwable>()
-          .withCallback {
-            clear()
-            this add it
-          }, 0, visibleThreshold)
+      val paginationListener = PaginationListener(this,
+          dataSource!!, recyclerView.layoutManager!!, visibleThreshold)
+      this.paginationListener = paginationListener
+      recyclerView.addOnScrollListener(paginationListener)
+      clear()
+      paginationListener.start()
     }
   }
 
+  override fun onDetachedFromRecyclerView(recyclerView: RecyclerView) {
+    super.onDetachedFromRecyclerView(recyclerView)
+    // pages still loading for the old listener would be added again by the next one
+    paginationListener?.let {
+      recyclerView.removeOnScrollListener(it)
+      it.resetState()
+    }
+    paginationListener = null
+  }
+
   override fun addLoadingView() {
-    this.list!!.add(loadingView)
+    if (loaderShown) return
+    loaderShown = true
     notifyDataSetChanged()
   }
 
-  override fun hasLoader(): Boolean {
-    return getList().last() is LoadingViewable
-  }
+  override fun hasLoader(): Boolean = loaderShown
 
   override fun removeLoader() {
-    getList().removeAt(getList().size - 1)
-    notifyItemRemoved(itemCount)
+    if (!loaderShown) return
+    loaderShown = false
+    notifyItemRemoved(indexer.size())
   }
+
   override fun onBindViewHolder(holder: Holder, position: Int) {
-    if (holder is LoadingViewable) return
+    if (holder is LoadingHolder) return
     val t = list!![position]
     if (t is ViewableInstance<*>) UIJobScheduler.submitJob {
       if (alternatingColor != 0)
@@ -243,7 +253,7 @@ open class DiffAdapter<T : Any>(list: List<T>,
     }
   }
 
-  override fun getItemCount(): Int = indexer.size()
+  override fun getItemCount(): Int = if (loaderShown) indexer.size() + 1 else indexer.size()
 
   open fun search(query: String, helperResult: (Boolean) -> Unit) {
     if (originalList == null) originalList = getList()
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import io.reactivex.Flowable
+import io.reactivex.FlowableSubscriber
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import io.reactivex.schedulers.Schedulers
+import org.reactivestreams.Subscription
+import promise.commons.model.List
+import promise.commons.tx.PromiseResult
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Data source reading pages from a [Flowable].
+ * Every load requests exactly the items of its page from the subscription, so the flowable
+ * never emits more than the adapter asked for. Loads continuing from the end of the last page
+ * share one subscription, a load at any other offset subscribes again from that offset, which
+ * needs a cold flowable. That subscription replaces the shared one when it has no load waiting,
+ * otherwise it only serves its own page.
+ *
+ * @param retries number of times in a row the flowable is subscribed again after an error,
+ * resuming after the last item received. Every filled page restores the full count
+ * @param timeoutMillis time allowed between items while a load waits for them before the
+ * subscription fails, zero waits forever. A stream no load waits on never times out
+ * @param scheduler scheduler timing the loads
+ */
+class FlowableDataSource<T> @JvmOverloads constructor(private val source: Flowable<T>,
+                                                      private val retries: Long = 0,
+                                                      private val timeoutMillis: Long = 0,
+                                                      private val scheduler: Scheduler = Schedulers.computation()) : DataSource<T> {
+
+  private class Request<T>(val response: PromiseResult<List<T>, *>, val take: Int) {
+    val items = List<T>()
+  }
+
+  private val lock = Any()
+  /**
+   * stream serving the loads at the end of the last page
+   */
+  private var tail: PageStream? = null
+  /**
+   * offset the tail reaches once every waiting load is filled
+   */
+  private var nextSkip = 0
+
+  override fun load(response: PromiseResult<List<T>, *>, skip: Int, take: Int) {
+    var subscribe = false
+    val (target, subscription) = synchronized(lock) {
+      val tail = tail
+      val target = when {
+        tail != null && skip == nextSkip -> tail
+        tail == null || tail.requests.isEmpty() -> {
+          // the stream only moves forward, with nothing left to deliver it starts again from the offset
+          tail?.cancel()
+          subscribe = true
+          PageStream(skip, false).also { this.tail = it }
+        }
+        else -> {
+          // the tail still owes earlier loads their pages, this one is read on its own
+          subscribe = true
+          PageStream(skip, true)
+        }
+      }
+      if (target === this.tail) nextSkip = skip + take
+      target to target.add(Request(response, take))
+    }
+    if (subscribe) target.subscribe()
+    // a subscription still to arrive requests every waiting item itself
+    subscription?.request(take.toLong())
+  }
+
+  private fun fail(request: Request<T>, error: Throwable) =
+      (request.response as PromiseResult<List<T>, Throwable>).error(error)
+
+  /**
+   * the loads of a range of the flowable, read through one subscription after the other
+   * until they are filled or the retries are used up
+   *
+   * @param oneShot whether the stream ends with the page of its first load
+   */
+  private inner class PageStream(start: Int, private val oneShot: Boolean) {
+    /**
+     * loads waiting for their items, filled in order
+     */
+    val requests = ArrayDeque<Request<T>>()
+    /**
+     * offset of the next item the flowable emits
+     */
+    private var received = start
+    private var current: Attempt? = null
+    private var failures = 0L
+    private var finished = false
+    private var timer: Disposable? = null
+    private var lastItemAt = 0L
+
+    /**
+     * queues a load, its items are requested by the caller from the returned subscription
+     */
+    fun add(request: Request<T>): Subscription? {
+      if (requests.isEmpty()) arm()
+      requests.add(request)
+      return current?.subscription
+    }
+
+    fun subscribe() {
+      val attempt = Attempt()
+      val skip = synchronized(lock) {
+        if (finished) return
+        // every subscription gets the whole timeout for its first item
+        lastItemAt = scheduler.now(TimeUnit.MILLISECONDS)
+        if (requests.isNotEmpty()) arm()
+        current = attempt
+        received
+      }
+      source.skip(skip.toLong()).subscribe(attempt)
+    }
+
+    fun cancel() {
+      finished = true
+      disarm()
+      current?.subscription?.cancel()
+      current = null
+    }
+
+    /**
+     * starts timing the wait for items, only while loads are waiting
+     */
+    private fun arm() {
+      if (timeoutMillis <= 0 || timer != null) return
+      lastItemAt = scheduler.now(TimeUnit.MILLISECONDS)
+      timer = scheduler.scheduleDirect({ onTimer() }, timeoutMillis, TimeUnit.MILLISECONDS)
+    }
+
+    private fun disarm() {
+      timer?.dispose()
+      timer = null
+    }
+
+    private fun onTimer() {
+      val attempt = synchronized(lock) {
+        timer = null
+        if (finished || requests.isEmpty()) return
+        val waited = scheduler.now(TimeUnit.MILLISECONDS) - lastItemAt
+        if (waited < timeoutMillis) {
+          // items arrived since the timer was set, wait for the rest of the timeout after the last one
+          timer = scheduler.scheduleDirect({ onTimer() }, timeoutMillis - waited, TimeUnit.MILLISECONDS)
+          return
+        }
+        current ?: return
+      }
+      attempt.subscription?.cancel()
+      retryOrFail(attempt, TimeoutException("no item for $timeoutMillis ms"))
+    }
+
+    private fun subscribed(attempt: Attempt, s: Subscription) {
+      val demand = synchronized(lock) {
+        if (attempt !== current) {
+          s.cancel()
+          return
+        }
+        attempt.subscription = s
+        // loads queued before the subscription arrived, the first one may be partly filled
+        requests.fold(0L) { demand, request -> demand + request.take - request.items.size }
+      }
+      if (demand > 0) s.request(demand)
+    }
+
+    private fun deliver(attempt: Attempt, t: T) {
+      val filled = synchronized(lock) {
+        if (attempt !== current) return
+        received++
+        lastItemAt = scheduler.now(TimeUnit.MILLISECONDS)
+        val request = requests.peek() ?: return
+        request.items.add(t)
+        if (request.items.size < request.take) return
+        requests.poll()
+        failures = 0
+        if (oneShot) cancel()
+        else if (requests.isEmpty()) disarm()
+        request
+      }
+      filled.response.response(filled.items)
+    }
+
+    private fun retryOrFail(attempt: Attempt, e: Throwable) {
+      val failed = synchronized(lock) {
+        if (attempt !== current) return
+        current = null
+        if (failures < retries) {
+          failures++
+          null
+        } else finish()
+      }
+      // every retry subscribes again after the last item received
+      if (failed == null) subscribe() else failed.forEach { fail(it, e) }
+    }
+
+    private fun complete(attempt: Attempt) {
+      // the last page may be short, the loads after it get empty pages
+      val filled = synchronized(lock) {
+        if (attempt !== current) return
+        finish()
+      }
+      filled.forEach { it.response.response(it.items) }
+    }
+
+    private fun finish(): kotlin.collections.List<Request<T>> {
+      cancel()
+      if (tail === this) tail = null
+      return ArrayList(requests).also { requests.clear() }
+    }
+
+    /**
+     * one subscription to the flowable, its signals are ignored once another one replaced it
+     */
+    private inner class Attempt : FlowableSubscriber<T> {
+      @Volatile
+      var subscription: Subscription? = null
+
+      override fun onSubscribe(s: Subscription) = subscribed(this, s)
+
+      override fun onNext(t: T) = deliver(this, t)
+
+      override fun onError(e: Throwable) = retryOrFail(this, e)
+
+      override fun onComplete() = complete(this)
+    }
+  }
+}
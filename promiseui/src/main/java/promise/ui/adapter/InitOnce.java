@@ -0,0 +1,23 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter;
+
+/**
+ * Implemented by viewables and view holders whose init only looks up child views into fields.
+ * Init then runs once per recycled holder and later items receive the views it found through
+ * {@link ViewSlots}, instead of calling init again. Viewables that set listeners, adapters or
+ * any other state on the views in init must not implement it
+ */
+public interface InitOnce {
+}
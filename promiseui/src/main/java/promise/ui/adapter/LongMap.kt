@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+/**
+ * Map from primitive long keys to values, hashed with open addressing.
+ * Every operation is constant time whatever the order the keys come in, and removals shift
+ * the following entries back instead of leaving tombstones
+ */
+internal class LongMap<V : Any>(initialCapacity: Int = 16) {
+
+  private var keys = LongArray(tableSize(initialCapacity))
+  private var values: Array<Any?> = arrayOfNulls(keys.size)
+  private var count = 0
+
+  val size: Int get() = count
+
+  private fun home(key: Long): Int {
+    // fibonacci hashing spreads ids that only differ in their low bits
+    val hash = key * -0x61c8864680b583ebL
+    return (hash ushr 32).toInt() xor hash.toInt() and (keys.size - 1)
+  }
+
+  private fun next(slot: Int): Int = (slot + 1) and (keys.size - 1)
+
+  private fun find(key: Long): Int {
+    var slot = home(key)
+    while (values[slot] != null) {
+      if (keys[slot] == key) return slot
+      slot = next(slot)
+    }
+    return -1
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  operator fun get(key: Long): V? {
+    val slot = find(key)
+    return if (slot < 0) null else values[slot] as V
+  }
+
+  /**
+   * @return the value the key had before, or null
+   */
+  @Suppress("UNCHECKED_CAST")
+  fun put(key: Long, value: V): V? {
+    var slot = home(key)
+    while (true) {
+      val current = values[slot]
+      if (current == null) {
+        keys[slot] = key
+        values[slot] = value
+        // kept at most half full so probes stay short
+        if (++count > keys.size shr 1) grow()
+        return null
+      }
+      if (keys[slot] == key) {
+        values[slot] = value
+        return current as V
+      }
+      slot = next(slot)
+    }
+  }
+
+  /**
+   * @return the value of the removed key, or null when it was not in the map
+   */
+  @Suppress("UNCHECKED_CAST")
+  fun remove(key: Long): V? {
+    var gap = find(key)
+    if (gap < 0) return null
+    val removed = values[gap] as V
+    var slot = gap
+    while (true) {
+      slot = next(slot)
+      val value = values[slot] ?: break
+      // an entry moves into the gap unless its own slot lies between the gap and where it is
+      val mask = keys.size - 1
+      if (((slot - home(keys[slot])) and mask) >= ((slot - gap) and mask)) {
+        keys[gap] = keys[slot]
+        values[gap] = value
+        gap = slot
+      }
+    }
+    values[gap] = null
+    count--
+    return removed
+  }
+
+  fun clear() {
+    if (count == 0) return
+    values.fill(null)
+    count = 0
+  }
+
+  private fun grow() {
+    val oldKeys = keys
+    val oldValues = values
+    keys = LongArray(oldKeys.size shl 1)
+    values = arrayOfNulls(keys.size)
+    for (i in oldKeys.indices) {
+      val value = oldValues[i] ?: continue
+      var slot = home(oldKeys[i])
+      while (values[slot] != null) slot = next(slot)
+      keys[slot] = oldKeys[i]
+      values[slot] = value
+    }
+  }
+
+  private companion object {
+    fun tableSize(capacity: Int): Int = Integer.highestOneBit(maxOf(capacity, 4) * 2 - 1) shl 1
+  }
+}
@@ -13,29 +13,88 @@
 
 package promise.ui.adapter
 
+import android.os.SystemClock
+import android.util.SparseArray
+import android.view.Choreographer
 import androidx.recyclerview.widget.GridLayoutManager
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import androidx.recyclerview.widget.StaggeredGridLayoutManager
+import promise.commons.AndroidPromise
 import promise.commons.model.List
 import promise.commons.tx.PromiseResult
+import java.util.*
 
+/**
+ * Loads the pages of a [DataSource] into a [PaginatedAdapter] ahead of the scroll position.
+ *
+ * @param prefetchPages number of pages past the visible threshold to keep loaded or loading
+ * @param maxInFlight maximum number of [DataSource.load] calls running at once
+ * @param maxItems number of items kept in a [WindowedAdapter] before the pages farthest from the
+ * visible ones are dropped, they are loaded again when scrolled back to. Zero keeps every item.
+ * On a grid the pages before the window are dropped and loaded in whole rows
+ */
 class PaginationListener<T : Any>(private val adapter: PaginatedAdapter<T>,
                                   private val dataSource: DataSource<T>,
                                   private val mLayoutManager: RecyclerView.LayoutManager,
-                                  private var visibleThreshold: Int = 10
+                                  private var visibleThreshold: Int = 10,
+                                  private val prefetchPages: Int = 1,
+                                  private val maxInFlight: Int = 1,
+                                  private val maxItems: Int = 0
 ) : RecyclerView.OnScrollListener() {
   // The minimum amount of items to have below your current scroll position
   // before loading more.
 
-  // The current offset index of data you have loaded
-  private var currentPage = 0
-  // The total number of items in the dataset after the last load
-  private var previousTotalItemCount = 0
-  // True if we are still waiting for the last set of data to load.
-  private var loading = true
-  // Sets the starting page index
-  private val startingPageIndex = 0
+  // The number of items in a page
+  private val pageSize = visibleThreshold
+  // The number of items dropped from or loaded before the window at once, whole pages that fill
+  // whole rows of a grid so the items left in the window keep their columns
+  private val windowStep = lcm(pageSize, spanCount(mLayoutManager))
+  // The offset of the next page to request
+  private var nextPage = 0
+  // The offset of the next page to add to the adapter, pages completing before it wait in completedPages
+  private var nextDelivery = 0
+  private val completedPages = SparseArray<List<T>>()
+  // Offsets of pages whose load failed, no new page is requested until they load
+  private val failedPages = ArrayDeque<Int>()
+  // Consecutive failed loads after the window and before it, each retry waits longer than the last
+  private var failures = 0
+  private var headFailures = 0
+  // Uptime before which the failed pages are not requested again
+  private var retryAt = 0L
+  private var headRetryAt = 0L
+  // The number of loads still waiting for their page
+  private var inFlight = 0
+  // True once a page came back shorter than requested
+  private var endReached = false
+  // Loads issued before the last reset are ignored when they complete
+  private var generation = 0
+  private var firstVisibleItemPosition = 0
+  private var lastVisibleItemPosition = 0
+  // The offset of the first item in the adapter, pages before it have been dropped
+  private var windowStart = 0
+  // True while the page before the window is loading
+  private var headLoading = false
+  private val window: WindowedAdapter<T>? = if (maxItems > 0) adapter as? WindowedAdapter<T> else null
+  // Reused for the visible positions of each span of a staggered grid
+  private var spanPositions = IntArray(0)
+  // True while a frame callback is waiting to evaluate the scroll position
+  private var evaluationScheduled = false
+  private val evaluation = Choreographer.FrameCallback {
+    evaluationScheduled = false
+    evaluate()
+  }
+  // Retries a failed page without waiting for a scroll, until MAX_RETRIES failures in a row
+  private val retry = Choreographer.FrameCallback { evaluate() }
+
+  private infix fun getFirstVisibleItem(firstVisibleItemPositions: IntArray): Int {
+    var minSize = 0
+    for (i in firstVisibleItemPositions.indices)
+      if (i == 0) minSize = firstVisibleItemPositions[i]
+    else if (firstVisibleItemPositions[i] < minSize)
+      minSize = firstVisibleItemPositions[i]
+    return minSize
+  }
 
   private infix fun getLastVisibleItem(lastVisibleItemPositions: IntArray): Int {
     var maxSize = 0
@@ -47,64 +106,236 @@ class PaginationListener<T : Any>(private val adapter: PaginatedAdapter<T>,
   }
 
   // This happens many times a second during a scroll, so be wary of the code you place here.
-// We are given a few useful parameters to help us work out if we need to load some more data,
-// but first we check if we are waiting for the previous load to finish.
+  // The position is evaluated at most once per frame, and not at all while every load slot is taken
   override fun onScrolled(view: RecyclerView, dx: Int, dy: Int) {
-    var lastVisibleItemPosition = 0
-    val totalItemCount = mLayoutManager.itemCount
-    // This condition will useful when recyclerview has less than visibleThreshold items
+    scheduleEvaluation()
+  }
+
+  // The adapter is not changed from inside a scroll callback, the evaluation waits for the next frame
+  override fun onScrollStateChanged(recyclerView: RecyclerView, newState: Int) {
+    scheduleEvaluation()
+  }
+
+  private fun scheduleEvaluation() {
+    if (evaluationScheduled || !canLoad()) return
+    evaluationScheduled = true
+    Choreographer.getInstance().postFrameCallback(evaluation)
+  }
+
+  // Loads are possible while a tail load slot is free or the page before the window can be loaded
+  private fun canLoad(): Boolean = inFlight < maxInFlight || (window != null && !headLoading)
+
+  private fun evaluate() {
+    updatePositions()
+    prefetch()
+    if (window != null) prefetchHead()
+  }
+
+  private fun updatePositions() {
     when (mLayoutManager) {
       is StaggeredGridLayoutManager -> {
-        val lastVisibleItemPositions = mLayoutManager.findLastVisibleItemPositions(null)
+        if (spanPositions.size != mLayoutManager.spanCount) spanPositions = IntArray(mLayoutManager.spanCount)
         // get maximum element within the list
-        lastVisibleItemPosition = getLastVisibleItem(lastVisibleItemPositions)
+        lastVisibleItemPosition = getLastVisibleItem(mLayoutManager.findLastVisibleItemPositions(spanPositions))
+        if (window != null)
+          firstVisibleItemPosition = getFirstVisibleItem(mLayoutManager.findFirstVisibleItemPositions(spanPositions))
+      }
+      is LinearLayoutManager -> {
+        lastVisibleItemPosition = mLayoutManager.findLastVisibleItemPosition()
+        firstVisibleItemPosition = mLayoutManager.findFirstVisibleItemPosition()
+      }
+    }
+  }
+
+  private fun itemCount(): Int = mLayoutManager.itemCount - if (adapter.hasLoader()) 1 else 0
+
+  /**
+   * requests pages until every item up to [prefetchPages] pages past the visible threshold
+   * is loaded or loading, or [maxInFlight] loads are running
+   */
+  private fun prefetch() {
+    val target = windowStart + lastVisibleItemPosition + visibleThreshold + (prefetchPages - 1) * pageSize
+    while (inFlight < maxInFlight) {
+      val skip = when {
+        failedPages.isNotEmpty() -> if (SystemClock.uptimeMillis() < retryAt) return else failedPages.poll()!!
+        !endReached && nextPage < target -> nextPage
+        else -> return
+      }
+      if (skip == nextPage) nextPage += pageSize
+      load(skip)
+    }
+  }
+
+  private fun load(skip: Int) {
+    val requested = generation
+    inFlight++
+    if (!adapter.hasLoader()) adapter.addLoadingView()
+    dataSource.load(PromiseResult<List<T>, Throwable>()
+        .withCallback {
+          AndroidPromise.instance().executeOnUi { onPage(requested, skip, it) }
+        }
+        .withErrorCallback {
+          AndroidPromise.instance().executeOnUi { onPage(requested, skip, null) }
+        }, skip, pageSize)
+  }
+
+  private fun onPage(requested: Int, skip: Int, page: List<T>?) {
+    if (requested != generation) return
+    inFlight--
+    // scroll events were skipped while every slot was loading
+    updatePositions()
+    if (page == null) {
+      failedPages.add(skip)
+      retryAt = SystemClock.uptimeMillis() + backoff(++failures)
+      if (failures <= MAX_RETRIES) scheduleRetry(retryAt)
+    } else {
+      failures = 0
+      if (page.size < pageSize) endReached = true
+      completedPages.put(skip, page)
+      // Pages completing out of order are added once every page before them has been
+      while (true) {
+        val next = completedPages[nextDelivery] ?: break
+        completedPages.remove(nextDelivery)
+        if (next.isNotEmpty()) adapter.add(next)
+        nextDelivery += pageSize
       }
-      is GridLayoutManager -> lastVisibleItemPosition = mLayoutManager.findLastVisibleItemPosition()
-      is LinearLayoutManager -> lastVisibleItemPosition = mLayoutManager.findLastVisibleItemPosition()
-      // If it’s still loading, we check to see if the dataset count has
-      // changed, if so we conclude it has finished loading and update the current page
-      // number and total item count.
-      // If it isn’t currently loading, we check to see if we have breached
-      // the visibleThreshold and need to reload more data.
-      // If we do need to reload some more data, we execute onLoadMore to fetch the data.
-      // threshold should reflect how many total columns there are too
     }
-    // If it’s still loading, we check to see if the dataset count has
-// changed, if so we conclude it has finished loading and update the current page
-// number and total item count.
-    if (loading && totalItemCount > previousTotalItemCount) {
-      loading = false
-      if (adapter.hasLoader()) adapter.removeLoader()
-      previousTotalItemCount = totalItemCount
+    if (inFlight == 0 && adapter.hasLoader()) adapter.removeLoader()
+    if (window != null) dropHead()
+    prefetch()
+  }
+
+  /**
+   * loads the page before the window once the first visible item is within the threshold of it
+   */
+  private fun prefetchHead() {
+    if (headLoading || windowStart == 0 || firstVisibleItemPosition >= visibleThreshold ||
+        SystemClock.uptimeMillis() < headRetryAt) return
+    val requested = generation
+    val skip = maxOf(windowStart - windowStep, 0)
+    headLoading = true
+    dataSource.load(PromiseResult<List<T>, Throwable>()
+        .withCallback {
+          AndroidPromise.instance().executeOnUi { onHeadPage(requested, skip, it) }
+        }
+        .withErrorCallback {
+          AndroidPromise.instance().executeOnUi { onHeadPage(requested, skip, null) }
+        }, skip, windowStart - skip)
+  }
+
+  private fun onHeadPage(requested: Int, skip: Int, page: List<T>?) {
+    if (requested != generation) return
+    headLoading = false
+    updatePositions()
+    if (page == null) {
+      headRetryAt = SystemClock.uptimeMillis() + backoff(++headFailures)
+      if (headFailures <= MAX_RETRIES) scheduleRetry(headRetryAt)
+      return
+    }
+    headFailures = 0
+    if (page.isEmpty()) return
+    window!!.prepend(page)
+    windowStart = skip
+    firstVisibleItemPosition += page.size
+    lastVisibleItemPosition += page.size
+    dropTail()
+  }
+
+  /**
+   * drops whole rows of pages before the visible ones while the window is over budget
+   */
+  private fun dropHead() {
+    if (headLoading) return
+    var count = itemCount()
+    while (count > maxItems && firstVisibleItemPosition >= windowStep + visibleThreshold) {
+      window!!.dropFirst(windowStep)
+      windowStart += windowStep
+      count -= windowStep
+      firstVisibleItemPosition -= windowStep
+      lastVisibleItemPosition -= windowStep
     }
-    // If it isn’t currently loading, we check to see if we have breached
-// the visibleThreshold and need to reload more data.
-// If we do need to reload some more data, we execute onLoadMore to fetch the data.
-// threshold should reflect how many total columns there are too
-    if (!loading && lastVisibleItemPosition +
-        visibleThreshold > totalItemCount &&
-        view.adapter!!.itemCount > visibleThreshold) { // This condition will useful when recyclerview has less than visibleThreshold items
-      currentPage += visibleThreshold
-      adapter.addLoadingView()
-      dataSource.load(PromiseResult<List<T>, Throwable>()
-          .withCallback {
-            adapter.add(it)
-          }, currentPage, visibleThreshold)
-      loading = true
+  }
+
+  /**
+   * drops whole pages after the visible ones while the window is over budget,
+   * only while no page after the window is loading
+   */
+  private fun dropTail() {
+    if (inFlight > 0 || completedPages.size() > 0) return
+    var count = itemCount()
+    while (count > maxItems) {
+      // the window starts on a page boundary so only its last page can be partial
+      val last = (count - 1) % pageSize + 1
+      if (count - last <= lastVisibleItemPosition + visibleThreshold) break
+      window!!.dropLast(last)
+      count -= last
+      nextPage = windowStart + count
+      nextDelivery = nextPage
+      endReached = false
     }
+    failedPages.removeAll { it >= nextPage }
+  }
+
+  private fun scheduleRetry(at: Long) {
+    val choreographer = Choreographer.getInstance()
+    choreographer.removeFrameCallback(retry)
+    choreographer.postFrameCallbackDelayed(retry, maxOf(at - SystemClock.uptimeMillis(), 0))
+  }
+
+  /**
+   * loads the first page into the adapter, which should be empty. The loader is shown until it arrives
+   * and a first page shorter than [pageSize] ends the pagination
+   */
+  fun start() {
+    resetState()
+    nextPage = pageSize
+    load(0)
   }
 
   // Call whenever performing new searches
   fun resetState() {
-    currentPage = startingPageIndex
-    previousTotalItemCount = 0
-    loading = true
+    if (evaluationScheduled) {
+      Choreographer.getInstance().removeFrameCallback(evaluation)
+      evaluationScheduled = false
+    }
+    Choreographer.getInstance().removeFrameCallback(retry)
+    failures = 0
+    headFailures = 0
+    retryAt = 0
+    headRetryAt = 0
+    generation++
+    nextPage = 0
+    nextDelivery = 0
+    completedPages.clear()
+    failedPages.clear()
+    inFlight = 0
+    endReached = false
+    windowStart = 0
+    headLoading = false
   }
 
   init {
-    when (mLayoutManager) {
-      is GridLayoutManager -> this.visibleThreshold *= mLayoutManager.spanCount
-      is StaggeredGridLayoutManager -> this.visibleThreshold *= mLayoutManager.spanCount
+    // threshold should reflect how many total columns there are too
+    this.visibleThreshold *= spanCount(mLayoutManager)
+  }
+
+  companion object {
+    // The first retry of a failed page waits this long, every failure in a row doubles it up to the max
+    private const val RETRY_DELAY = 1000L
+    private const val MAX_RETRY_DELAY = 30000L
+    // Failures in a row after which failed pages are only retried when the list is scrolled
+    private const val MAX_RETRIES = 5
+
+    private fun backoff(failures: Int): Long = minOf(RETRY_DELAY shl minOf(failures - 1, 16), MAX_RETRY_DELAY)
+
+    private fun spanCount(layoutManager: RecyclerView.LayoutManager): Int = when (layoutManager) {
+      is GridLayoutManager -> layoutManager.spanCount
+      is StaggeredGridLayoutManager -> layoutManager.spanCount
+      else -> 1
     }
+
+    private tailrec fun gcd(a: Int, b: Int): Int = if (b == 0) a else gcd(b, a % b)
+
+    private fun lcm(a: Int, b: Int): Int = a / gcd(a, b) * b
   }
-}
\ No newline at end of file
+}
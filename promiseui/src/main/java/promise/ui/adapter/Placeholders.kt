@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import promise.commons.AndroidPromise
+import promise.commons.model.List
+import promise.commons.tx.PromiseResult
+import java.util.*
+
+/**
+ * Fixed size list of the items of a [CountedDataSource], loaded a page at a time.
+ * Positions of pages that are not loaded hold no item and are shown as placeholders,
+ * only the most recently used pages are kept
+ *
+ * @param onChanged called with the start and size of every range whose items were loaded or dropped
+ * @param onUi runs the completion of a page load on the main thread
+ */
+internal class Placeholders<T : Any>(private val dataSource: CountedDataSource<T>,
+                                     private val pageSize: Int,
+                                     private val maxPages: Int,
+                                     private val onUi: (() -> Unit) -> Unit = { job -> AndroidPromise.instance().executeOnUi { job() } },
+                                     private val onChanged: (Int, Int) -> Unit) {
+
+  var count = -1
+    private set
+  private var pages = arrayOfNulls<Array<ViewableInstance<T>>>(0)
+  private val loading = BitSet()
+  /**
+   * loaded pages, least recently used first
+   */
+  private val loaded = LinkedHashSet<Int>()
+  private var generation = 0
+
+  /**
+   * drops every loaded page and shows the given number of placeholders
+   */
+  fun reset(count: Int) {
+    generation++
+    this.count = count
+    pages = arrayOfNulls((count + pageSize - 1) / pageSize)
+    loading.clear()
+    loaded.clear()
+  }
+
+  operator fun get(position: Int): ViewableInstance<T>? {
+    val page = pages[position / pageSize] ?: return null
+    val offset = position % pageSize
+    return if (offset < page.size) page[offset] else null
+  }
+
+  /**
+   * loads the page of a bound row, and the page next to it on the side of the row's half of its page
+   */
+  fun prefetch(position: Int) {
+    request(position)
+    request(position + pageSize / 2)
+    request(position - pageSize / 2)
+  }
+
+  /**
+   * loads the page holding the position unless it is loaded or loading
+   */
+  fun request(position: Int) {
+    if (position < 0 || position >= count) return
+    val page = position / pageSize
+    if (pages[page] != null) {
+      // keeps the page most recently used
+      if (loaded.remove(page)) loaded.add(page)
+      return
+    }
+    if (loading[page]) return
+    loading.set(page)
+    val requested = generation
+    dataSource.load(PromiseResult<List<T>, Throwable>()
+        .withCallback {
+          onUi { onPage(requested, page, it) }
+        }
+        .withErrorCallback {
+          // the page is requested again the next time one of its rows is bound
+          onUi { if (requested == generation) loading.clear(page) }
+        }, page * pageSize, pageSize)
+  }
+
+  private fun onPage(requested: Int, page: Int, items: List<T>) {
+    if (requested != generation) return
+    loading.clear(page)
+    val size = minOf(items.size, pageSize, count - page * pageSize)
+    pages[page] = Array(size) { ViewableInstance(items[it]) }
+    loaded.add(page)
+    onChanged(page * pageSize, size)
+    if (loaded.size > maxPages) {
+      val eldest = loaded.iterator().next()
+      loaded.remove(eldest)
+      val dropped = pages[eldest]!!
+      pages[eldest] = null
+      onChanged(eldest * pageSize, dropped.size)
+    }
+  }
+}
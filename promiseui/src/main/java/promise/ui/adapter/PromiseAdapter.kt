@@ -14,50 +14,97 @@
 package promise.ui.adapter
 
 import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.os.MessageQueue
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
 import android.widget.Filter
 import android.widget.Filterable
 import androidx.annotation.IdRes
+import androidx.annotation.LayoutRes
 import androidx.collection.ArrayMap
 import androidx.recyclerview.widget.DefaultItemAnimator
+import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.GridLayoutManager
 import androidx.recyclerview.widget.ItemTouchHelper
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
+import promise.commons.AndroidPromise
 import promise.commons.data.log.LogUtil
 import promise.commons.model.List
 import promise.commons.tx.PromiseResult
 import promise.commons.util.Conditions
 import promise.ui.UIJobScheduler
 import promise.ui.Viewable
+import java.lang.reflect.Field
+import java.lang.reflect.Modifier
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import kotlin.reflect.KClass
 
 /**
  * Created by yoctopus on 11/6/17.
  */
 open class PromiseAdapter<T : Any>(list: List<T>,
-                                   var listener: Listener<T>?, var args: Any?) : RecyclerView.Adapter<PromiseAdapter<T>.Holder>(), PaginatedAdapter<T> {
+                                   var listener: Listener<T>?, var args: Any?) : RecyclerView.Adapter<PromiseAdapter.Holder<T>>(), WindowedAdapter<T> {
 
   private val TAG: String = LogUtil.makeTag(PromiseAdapter::class.java)
   private val AdapterItems = "__adapter_items__"
   private val indexer: Indexer
-  private var list: List<Any>? = null
+  private var list: RingList<ViewableInstance<T>>? = null
+  /**
+   * whether the loading view is shown after the items, it is never stored with them
+   */
+  private var loaderShown = false
   var longClickListener: LongClickListener<T>? = null
   private var swipeListener: Swipe<T>? = null
   private var alternatingColor = 0
   private var onAfterInitListener: OnAfterInitListener? = null
+  private var itemCallback: DiffUtil.ItemCallback<T>? = null
+  private var idProvider: ((T) -> Long)? = null
+  private var deferBinding = false
+  private var maxRecycledViews: Map<Int, Int>? = null
+  /**
+   * prewarm requested before this adapter was set on its recycler view
+   */
+  private var pendingPrewarm: Pair<RecyclerView, Map<Class<*>, Int>>? = null
+  private var incrementalSearch = true
+  private var searchIndex: SearchIndex<T>? = null
+  private var searchDelay = 0L
+  private var parallelSearchThreshold = Int.MAX_VALUE
+  private var pendingSearch: Runnable? = null
+  private var searchSequence = 0
+  /**
+   * latest search made, filtering and results of older searches are dropped
+   */
+  @Volatile
+  private var latestSearch: SearchQuery? = null
 
   private var dataSource: DataSource<T>? = null
   private var loadingView: LoadingViewable? = null
   private var visibleThreshold = 10
+  private var prefetchPages = 1
+  private var maxInFlight = 1
+  private var maxItems = 0
+  /**
+   * listener loading the pages into this adapter while it is attached to a recycler view
+   */
+  private var paginationListener: PaginationListener<T>? = null
+  private var placeholders: Placeholders<T>? = null
+  private var placeholderLayout = 0
 
   private var originalList: List<T>? = null
 
   private var viewableClasses: MutableMap<String, KClass<out Viewable>>? = null
 
+  private val viewTypes = HashMap<Class<*>, ViewType>()
+
   private var searchHelper: SearchHelper? = null
 
   var isReverse: Boolean
@@ -74,7 +121,7 @@ open class PromiseAdapter<T : Any>(list: List<T>,
   }
 
   init {
-    this.list = List()
+    this.list = RingList(list.size)
     list.forEach {
       this.list!!.add(ViewableInstance(it))
     }
@@ -97,62 +144,234 @@ open class PromiseAdapter<T : Any>(list: List<T>,
     return this
   }
 
+  /**
+   * diff every [setList] against the current items on a background thread and
+   * dispatch only the changes, instead of refreshing the whole list
+   */
+  fun withDiffing(itemCallback: DiffUtil.ItemCallback<T>): PromiseAdapter<T> {
+    this.itemCallback = itemCallback
+    return this
+  }
+
+  /**
+   * extracts the stable id of every item, used instead of [Identifiable] when provided.
+   * Ids must not be negative, negative ids are given to the items without one
+   */
+  fun withIds(idProvider: (T) -> Long): PromiseAdapter<T> {
+    this.idProvider = idProvider
+    indexer.identifyAll()
+    return this
+  }
+
+  /**
+   * binds items from UIJobScheduler after RecyclerView asks for them instead of inline,
+   * only the work in [DeferredBinder.bindDeferred] is deferred by default
+   */
+  fun deferBinding(deferBinding: Boolean): PromiseAdapter<T> {
+    this.deferBinding = deferBinding
+    return this
+  }
+
+  /**
+   * shares recycled holders with the other adapters of the screen through [SharedViewPool]
+   *
+   * @param maxRecycledViews maximum number of recycled holders kept per layout resource
+   */
+  @JvmOverloads
+  fun withSharedPool(maxRecycledViews: Map<Int, Int> = emptyMap()): PromiseAdapter<T> {
+    this.maxRecycledViews = maxRecycledViews
+    return this
+  }
+
+  /**
+   * answers searches from a trigram index over [IndexedSearchable.searchKey] instead of calling
+   * [Searchable.onSearch] on every item, the index is built in the background and kept up to date
+   * as items are added and removed. Searches scan the items while any of them is not [IndexedSearchable]
+   */
+  fun withSearchIndex(): PromiseAdapter<T> {
+    if (searchIndex == null) searchIndex = SearchIndex<T>().also { it.rebuild(items) }
+    return this
+  }
+
+  /**
+   * @param prefetchPages number of pages past the visible threshold loaded ahead of the scroll position
+   * @param maxInFlight maximum number of pages loading at once
+   * @param maxItems number of items kept before pages far from the visible ones are dropped,
+   * zero keeps every loaded item
+   */
   @JvmOverloads
   fun withPagination(dataSource: DataSource<T>,
                      loadingView: LoadingViewable,
-                     visibleThreshold: Int = 10): PromiseAdapter<T> {
+                     visibleThreshold: Int = 10,
+                     prefetchPages: Int = 1,
+                     maxInFlight: Int = 1,
+                     maxItems: Int = 0): PromiseAdapter<T> {
     this.dataSource = dataSource
     this.loadingView = loadingView
     this.visibleThreshold = visibleThreshold
+    this.prefetchPages = prefetchPages
+    this.maxInFlight = maxInFlight
+    this.maxItems = maxItems
+    return this
+  }
+
+  /**
+   * shows every item of the data source up front, rows whose page is not loaded show the
+   * placeholder layout and load their page when bound, so any position can be scrolled to directly.
+   * The adapter only shows the data source's items while placeholders are used, adding, removing,
+   * updating or setting items then fails with an IllegalStateException
+   *
+   * @param maxPages number of loaded pages kept, the least recently used are dropped
+   * @param onError receives the error when the data source can not count its items, it is logged by default
+   */
+  @JvmOverloads
+  fun withPlaceholders(dataSource: CountedDataSource<T>,
+                       @LayoutRes placeholderLayout: Int,
+                       pageSize: Int = 50,
+                       maxPages: Int = 20,
+                       onError: ((Throwable) -> Unit)? = null): PromiseAdapter<T> {
+    this.placeholderLayout = placeholderLayout
+    this.placeholders = Placeholders(dataSource, pageSize, maxPages) { start, count ->
+      notifyItemRangeChanged(start, count)
+    }
+    dataSource.count(PromiseResult<Int, Throwable>()
+        .withCallback {
+          AndroidPromise.instance().executeOnUi {
+            placeholders!!.reset(it)
+            notifyDataSetChanged()
+          }
+        }
+        .withErrorCallback {
+          AndroidPromise.instance().executeOnUi {
+            if (onError != null) onError(it) else LogUtil.e(TAG, "could not count the items of ", dataSource, it)
+          }
+        })
     return this
   }
 
   open infix fun add(t: T) {
-    indexer.add(Conditions.checkNotNull(t))
+    Conditions.checkNotNull(t)
+    checkEditable()
+    onUi {
+      indexer.add(t)
+      searchIndex?.add(t, isReverse)
+    }
   }
 
   infix fun unShift(t: T) {
-    indexer.unshift(Conditions.checkNotNull(t))
+    Conditions.checkNotNull(t)
+    checkEditable()
+    onUi {
+      indexer.unshift(t)
+      searchIndex?.add(t, true)
+    }
   }
 
   override infix fun add(list: List<T>) {
-    indexer.add(Conditions.checkNotNull(list))
+    Conditions.checkNotNull(list)
+    checkEditable()
+    onUi {
+      indexer.add(list)
+      searchIndex?.addAll(list, isReverse)
+    }
   }
 
   infix fun remove(t: T) {
-    indexer.remove(Conditions.checkNotNull(t))
+    Conditions.checkNotNull(t)
+    checkEditable()
+    onUi {
+      indexer.remove(t)
+      searchIndex?.remove(t)
+    }
+  }
+
+  /**
+   * inserts the items before the first one, keeping their order
+   */
+  override infix fun prepend(list: List<T>) {
+    Conditions.checkNotNull(list)
+    checkEditable()
+    onUi {
+      indexer.prepend(list)
+      searchIndex?.addAll(list.asReversed(), true)
+    }
+  }
+
+  override fun dropFirst(count: Int) = editOnUi {
+    for (t in indexer.drop(0, count)) searchIndex?.remove(t)
+  }
+
+  override fun dropLast(count: Int) = editOnUi {
+    val size = indexer.size()
+    for (t in indexer.drop(maxOf(size - count, 0), count)) searchIndex?.remove(t)
   }
 
-  fun updateAll() {
+  fun updateAll() = onUi {
     indexer.updateAll()
   }
 
   infix fun update(viewHolder: T) {
-    indexer.update(Conditions.checkNotNull(viewHolder))
+    update(viewHolder, null)
+  }
+
+  /**
+   * rebinds only the part of the item described by the payload, see [ViewHolder.bindPartial]
+   */
+  fun update(t: T, payload: Any?) {
+    Conditions.checkNotNull(t)
+    checkEditable()
+    onUi {
+      val old = indexer.update(t, payload) ?: return@onUi
+      searchIndex?.replace(old, t)
+    }
   }
 
-  fun clear() {
+  fun clear() = editOnUi {
     indexer.clear()
+    searchIndex?.clear()
+  }
+
+  /**
+   * the items of a placeholder adapter are the rows of its data source
+   */
+  private fun checkEditable() {
+    Conditions.checkState(placeholders == null, "the items of an adapter using placeholders can not be changed")
+  }
+
+  private fun editOnUi(change: () -> Unit) {
+    checkEditable()
+    onUi(change)
+  }
+
+  /**
+   * applies a change right away on the main thread and posts it there from any other,
+   * so the items and the notification RecyclerView receives for them never disagree
+   */
+  private fun onUi(change: () -> Unit) {
+    if (Looper.myLooper() === Looper.getMainLooper()) change() else mainHandler.post(change)
   }
 
   override fun getItemViewType(position: Int): Int {
-    var viewableInstance = list!![position]
-    if (viewableInstance is LoadingViewable) return TYPE_LOADING
-    viewableInstance = viewableInstance as ViewableInstance<T>
-    if (viewableClasses != null) {
-      val tClass = viewableInstance.t.javaClass
-      if (viewableClasses!!.containsKey(tClass.name)) {
-        val kClass = viewableClasses!![tClass.name]
-        viewableInstance.viewClass = kClass
-      }
-    }
-    val viewable = viewableInstance.viewable()
-    val viewType = viewable.layout()
-    Conditions.checkState(viewType != 0, "The layout resource for $viewable is not provided")
-    return viewType
+    val viewableInstance = instanceAt(position)
+        ?: return if (placeholders != null) placeholderLayout else TYPE_LOADING
+    if (viewableInstance.viewType != 0) return viewableInstance.viewType
+    val tClass = viewableInstance.t.javaClass
+    var resolved = viewTypes[tClass]
+    if (resolved == null) {
+      val kClass = viewableClasses?.get(tClass.name)
+      viewableInstance.viewClass = kClass
+      val viewable = viewableInstance.viewable()
+      val viewType = viewable.layout()
+      Conditions.checkState(viewType != 0, "The layout resource for $viewable is not provided")
+      resolved = ViewType(kClass, viewType)
+      // items that are viewable themselves may pick a different layout per instance
+      if (viewableInstance.t !is Viewable) viewTypes[tClass] = resolved
+    } else viewableInstance.viewClass = resolved.viewClass
+    viewableInstance.viewType = resolved.layout
+    return resolved.layout
   }
 
-  override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): Holder {
+  override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): Holder<T> {
     if (viewType == TYPE_LOADING) {
       val view = LayoutInflater.from(parent.context).inflate(loadingView!!.layout(),
           parent, false)
@@ -176,6 +395,17 @@ open class PromiseAdapter<T : Any>(list: List<T>,
       recyclerView.layoutManager = WrapContentLinearLayoutManager(recyclerView.context, orientation, reverse)
     }
 
+    if (maxRecycledViews != null) {
+      val pool = SharedViewPool.of(recyclerView.context)
+      if (pool != null) {
+        for ((viewType, max) in maxRecycledViews!!) pool.setMaxRecycledViews(viewType, max)
+        // loading holders are bound to the loading view of the adapter that created them
+        pool.setMaxRecycledViews(TYPE_LOADING, 0)
+        recyclerView.setRecycledViewPool(pool)
+        (recyclerView.layoutManager as? LinearLayoutManager)?.recycleChildrenOnDetach = true
+      } else LogUtil.e(TAG, "no lifecycle owner found for ", recyclerView.context, " not sharing its view pool")
+    }
+
     if (swipeListener != null) {
       val simpleCallback = object : ItemTouchHelper.SimpleCallback(0, ItemTouchHelper.LEFT or ItemTouchHelper.RIGHT) {
         override fun onMove(
@@ -186,7 +416,7 @@ open class PromiseAdapter<T : Any>(list: List<T>,
         }
 
         override fun onSwiped(viewHolder: RecyclerView.ViewHolder, direction: Int) {
-          if (viewHolder is PromiseAdapter<*>.Holder) {
+          if (viewHolder is Holder<*>) {
             val response: Response = object : Response {
               override fun call() {
                 update(viewHolder.viewableInstance.t as T)
@@ -202,84 +432,348 @@ open class PromiseAdapter<T : Any>(list: List<T>,
       ItemTouchHelper(simpleCallback).attachToRecyclerView(recyclerView)
     }
 
+    pendingPrewarm?.let { (view, counts) ->
+      if (view === recyclerView) {
+        pendingPrewarm = null
+        prewarm(view, counts)
+      }
+    }
+
     if (dataSource != null) {
-      recyclerView.addOnScrollListener(PaginationListener(this,
-          dataSource!!, recyclerView.layoutManager!!, visibleThreshold))
-      addLoadingView()
-      dataSource!!.load(PromiseResult<List<T>, Throwable>()
-          .withCallback {
-            clear()
-            this add it
-          }, 0, visibleThreshold)
+      val paginationListener = PaginationListener(this,
+          dataSource!!, recyclerView.layoutManager!!, visibleThreshold, prefetchPages, maxInFlight, maxItems)
+      this.paginationListener = paginationListener
+      recyclerView.addOnScrollListener(paginationListener)
+      clear()
+      paginationListener.start()
+    }
+  }
+
+  override fun onDetachedFromRecyclerView(recyclerView: RecyclerView) {
+    super.onDetachedFromRecyclerView(recyclerView)
+    // pages still loading for the old listener would be added again by the next one
+    paginationListener?.let {
+      recyclerView.removeOnScrollListener(it)
+      it.resetState()
+    }
+    paginationListener = null
+  }
+
+  // a pooled holder may be bound by another adapter next, it does not keep this one alive
+  override fun onViewRecycled(holder: Holder<T>) {
+    super.onViewRecycled(holder)
+    holder.owner = null
+  }
+
+  // the loader goes through the same path as the items so its position is always after them
+  override fun addLoadingView() = onUi {
+    if (!loaderShown) {
+      loaderShown = true
+      notifyItemInserted(indexer.size())
+    }
+  }
+
+  override fun hasLoader(): Boolean = loaderShown
+
+  override fun removeLoader() = onUi {
+    if (loaderShown) {
+      loaderShown = false
+      notifyItemRemoved(indexer.size())
+    }
+  }
 
+  override fun onBindViewHolder(holder: Holder<T>, position: Int) {
+    placeholders?.prefetch(position)
+    val t = instanceAt(position) ?: return
+    if (deferBinding) UIJobScheduler.submitJob {
+      // the holder may have been recycled for another item before the job ran
+      val current = holder.adapterPosition
+      if (current != RecyclerView.NO_POSITION && instanceAt(current) === t)
+        bind(holder, t, current)
+    } else bind(holder, t, position)
+  }
+
+  override fun onBindViewHolder(holder: Holder<T>, position: Int, payloads: MutableList<Any>) {
+    val instance = instanceAt(position)
+    if (payloads.isEmpty() || deferBinding || instance == null ||
+        !holder.bindPartial(instance, payloads)) onBindViewHolder(holder, position)
+  }
+
+  private fun bind(holder: Holder<T>, viewableInstance: ViewableInstance<T>, position: Int) {
+    if (alternatingColor != 0)
+      if (position % 2 == 1) holder.view.setBackgroundColor(alternatingColor)
+    // holders from a shared pool may have been created by another adapter
+    holder.owner = this
+    holder.bind(viewableInstance, args)
+    val target = viewableInstance.target()
+    if (target is DeferredBinder) UIJobScheduler.submitJob {
+      if (holder.viewableInstance === viewableInstance) target.bindDeferred(holder.view, args)
     }
   }
 
-  override fun addLoadingView() {
-    this.list!!.add(loadingView)
-    notifyDataSetChanged()
+  override fun getItemCount(): Int {
+    placeholders?.let { return maxOf(it.count, 0) }
+    return if (loaderShown) indexer.size() + 1 else indexer.size()
+  }
+
+  /**
+   * @return the wrapper shown at the position, null for the loader and placeholders
+   */
+  private fun instanceAt(position: Int): ViewableInstance<T>? {
+    if (position < 0) return null
+    placeholders?.let { return if (position < it.count) it[position] else null }
+    return if (position < indexer.size()) list!![position] else null
   }
 
-  override fun hasLoader(): Boolean = getList().last() is LoadingViewable
+  private fun itemAt(position: Int): T? = instanceAt(position)?.t
 
-  override fun removeLoader() {
-    getList().removeAt(getList().size - 1)
-    notifyItemRemoved(itemCount)
+  // the rows of a placeholder adapter never move, so their position identifies them
+  override fun getItemId(position: Int): Long =
+      if (placeholders != null) position.toLong() else instanceAt(position)?.id ?: LOADER_ID
+
+  /**
+   * position of the item with the given stable id or -1 if it is not in the adapter,
+   * the ids of a placeholder adapter are the positions of its rows
+   */
+  fun positionOf(id: Long): Int {
+    placeholders?.let { return if (id >= 0 && id < it.count) id.toInt() else -1 }
+    return indexer.positionOf(id)
   }
 
-  override fun onBindViewHolder(holder: Holder, position: Int) {
-    if (holder is LoadingViewable) return
-    val t = list!![position]
-    if (t is ViewableInstance<*>) UIJobScheduler.submitJob {
-      if (alternatingColor != 0)
-        if (position % 2 == 1) holder.view.setBackgroundColor(alternatingColor)
-      holder.bind(t as ViewableInstance<T>, args)
+  /**
+   * inflates the expected number of holders for each item class while the main thread is idle
+   * and puts them in the recycled view pool, so the first frames of the list do not inflate.
+   * Item classes must carry [ViewableEntity] or have been shown by this adapter before.
+   * Called before the adapter is set on the recycler view, it waits until then so the holders
+   * go to the pool the recycler view ends up with
+   */
+  fun prewarm(recyclerView: RecyclerView, counts: Map<Class<*>, Int>) {
+    if (recyclerView.adapter !== this) {
+      pendingPrewarm = recyclerView to counts
+      return
+    }
+    val pending = ArrayDeque<Int>()
+    val pool = recyclerView.recycledViewPool
+    for ((type, count) in counts) {
+      val viewType = layoutOf(type)
+      if (viewType == 0) {
+        LogUtil.e(TAG, "no layout known for ", type, " skipping its prewarm")
+        continue
+      }
+      // the pool keeps 5 holders per view type unless told otherwise
+      pool.setMaxRecycledViews(viewType, maxOf(count, maxRecycledViews?.get(viewType) ?: 5))
+      repeat(count) { pending.add(viewType) }
     }
+    if (pending.isEmpty()) return
+    Looper.myQueue().addIdleHandler(object : MessageQueue.IdleHandler {
+      override fun queueIdle(): Boolean {
+        // stop once the recycler view shows another adapter
+        if (recyclerView.adapter != null && recyclerView.adapter !== this@PromiseAdapter) return false
+        val viewType = pending.poll() ?: return false
+        recyclerView.recycledViewPool.putRecycledView(createViewHolder(recyclerView, viewType))
+        return pending.isNotEmpty()
+      }
+    })
+  }
+
+  private fun layoutOf(type: Class<*>): Int {
+    viewTypes[type]?.let { return it.layout }
+    ViewableFactories.get(type)?.let { return it.layout() }
+    return type.getAnnotation(ViewableEntity::class.java)?.layoutResource ?: 0
+  }
+
+  /**
+   * narrows a query extending a recent one from that query's results instead of every item,
+   * disable it when [Searchable.onSearch] may match an item for a longer query but not a prefix of it
+   */
+  fun incrementalSearch(incrementalSearch: Boolean): PromiseAdapter<T> {
+    this.incrementalSearch = incrementalSearch
+    return this
   }
 
-  override fun getItemCount(): Int = indexer.size()
+  /**
+   * waits until no search has been made for the given delay before filtering, so typing
+   * a word filters once instead of once per character
+   */
+  fun debounceSearch(delayMillis: Long): PromiseAdapter<T> {
+    this.searchDelay = delayMillis
+    return this
+  }
+
+  /**
+   * splits searches over lists of at least the given size across the cores and merges the matches
+   * in order, [Searchable.onSearch] is then called from several threads at once
+   */
+  @JvmOverloads
+  fun parallelSearch(threshold: Int = PARALLEL_SEARCH_THRESHOLD): PromiseAdapter<T> {
+    this.parallelSearchThreshold = threshold
+    return this
+  }
 
   open fun search(query: String, helperResult: (Boolean) -> Unit) {
     if (originalList == null) originalList = getList()
     if (searchHelper == null) searchHelper = SearchHelper(originalList!!, helperResult)
-    searchHelper!!.filter.filter(query)
+    // a newer search cancels the filtering of every older one still running
+    latestSearch = SearchQuery(query, ++searchSequence)
+    val handler = mainHandler
+    pendingSearch?.let { handler.removeCallbacks(it) }
+    pendingSearch = null
+    if (searchDelay <= 0) {
+      searchHelper!!.filter.filter(query)
+      return
+    }
+    pendingSearch = Runnable {
+      pendingSearch = null
+      searchHelper!!.filter.filter(query)
+    }
+    handler.postDelayed(pendingSearch!!, searchDelay)
   }
 
+  private class SearchQuery(val query: String, val sequence: Int)
+
+  /**
+   * matches of a query tagged with the sequence of the search they were filtered for
+   */
+  private class SearchResults<T>(val sequence: Int, val items: List<T>)
+
   inner class SearchHelper(private val originalList: List<T>, private val helperResult: (Boolean) -> Unit): Filterable {
-    override fun getFilter(): Filter = object : Filter() {
+    /**
+     * results of recent queries, a query extending one of them only scans its results
+     */
+    private val snapshots = object : LinkedHashMap<String, List<T>>(SEARCH_SNAPSHOTS, 0.75f, true) {
+      override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, List<T>>?): Boolean =
+          size > SEARCH_SNAPSHOTS
+    }
+
+    private val filter: Filter = object : Filter() {
       override fun performFiltering(charSequence: CharSequence): FilterResults {
         val results = FilterResults()
-        val filterData = originalList.filter { t: T ->
-          t is Searchable &&
-              t.onSearch(charSequence.toString())
+        val query = charSequence.toString()
+        val request = latestSearch
+        // a newer search was made before this one started filtering
+        if (request == null || request.query != query) return results
+        // an empty query restores every item, indexed or not
+        if (query.isEmpty()) {
+          results.values = SearchResults(request.sequence, originalList)
+          results.count = originalList.size
+          return results
         }
-        results.values = filterData
-        if (!filterData.isEmpty()) results.count =
-            filterData.size else results.count = 0
+        // the index is null until built, the items are scanned meanwhile
+        val filterData = searchIndex?.query(query) ?: snapshots[query] ?: scan(query, request)
+        ?: return results
+        results.values = SearchResults(request.sequence, filterData)
+        results.count = filterData.size
         return results
       }
 
-      override fun publishResults(charSequence: CharSequence, filterResults: FilterResults) =
-          when {
-            charSequence.isNotEmpty() && filterResults.count == 0 -> helperResult(false)
-            filterResults.count > 0 -> {
-              helperResult(true)
-              setList((filterResults.values as List<T>))
-            }
-            charSequence.isEmpty() -> {
-              helperResult(true)
-              setList(originalList)
-            }
-            else -> helperResult(true)
+      override fun publishResults(charSequence: CharSequence, filterResults: FilterResults) {
+        // results of an older search arriving after a newer one was made never reach the list
+        val searchResults = filterResults.values as? SearchResults<T> ?: return
+        if (searchResults.sequence != latestSearch?.sequence) return
+        when {
+          charSequence.isNotEmpty() && filterResults.count == 0 -> helperResult(false)
+          filterResults.count > 0 -> {
+            helperResult(true)
+            // search results are shown without reindexing them
+            indexer.setList(searchResults.items)
+          }
+          charSequence.isEmpty() -> {
+            helperResult(true)
+            indexer.setList(originalList)
           }
+          else -> helperResult(true)
+        }
+      }
+    }
+
+    /**
+     * @return the items matching the query, or null when a newer search was made while scanning
+     */
+    private fun scan(query: String, request: SearchQuery): List<T>? {
+      val source = source(query)
+      val matches = (if (source.size >= parallelSearchThreshold && SEARCH_PARALLELISM > 1)
+        scanParallel(source, query, request) else scanRange(source, 0, source.size, query, request))
+          ?: return null
+      if (incrementalSearch) snapshots[query] = matches
+      return matches
+    }
+
+    private fun scanRange(source: List<T>, from: Int, to: Int, query: String, request: SearchQuery): List<T>? {
+      val matches = List<T>()
+      for (i in from until to) {
+        if (i and CANCEL_CHECK_MASK == 0 && request !== latestSearch) return null
+        val t = source[i]
+        if (t is Searchable && t.onSearch(query)) matches.add(t)
+      }
+      return matches
+    }
+
+    /**
+     * scans one chunk of the source per core, the filter thread scanning the first chunk itself
+     */
+    private fun scanParallel(source: List<T>, query: String, request: SearchQuery): List<T>? {
+      val chunk = (source.size + SEARCH_PARALLELISM - 1) / SEARCH_PARALLELISM
+      val chunks = ArrayList<Future<List<T>?>>(SEARCH_PARALLELISM - 1)
+      for (i in 1 until SEARCH_PARALLELISM) {
+        val from = minOf(i * chunk, source.size)
+        val to = minOf(from + chunk, source.size)
+        chunks.add(searchExecutor.submit(Callable { scanRange(source, from, to, query, request) }))
+      }
+      val first = scanRange(source, 0, minOf(chunk, source.size), query, request)
+      val matches = List<T>()
+      if (first != null) matches.addAll(first)
+      var cancelled = first == null
+      for (future in chunks) {
+        val part = try {
+          future.get()
+        } catch (e: ExecutionException) {
+          throw e.cause ?: e
+        }
+        if (part == null) cancelled = true else if (!cancelled) matches.addAll(part)
+      }
+      return if (cancelled) null else matches
+    }
+
+    override fun getFilter(): Filter = filter
+
+    /**
+     * items the query has to be matched against, the results of the longest
+     * remembered query it extends or every item
+     */
+    private fun source(query: String): List<T> {
+      if (!incrementalSearch) return originalList
+      var source = originalList
+      var longest = -1
+      for ((key, results) in snapshots)
+        if (key.length > longest && query.startsWith(key)) {
+          source = results
+          longest = key.length
+        }
+      return source
     }
   }
 
-  fun getList(): List<T> =
-      list!!.filter { it is ViewableInstance<*> }.map { (it as ViewableInstance<T>).t }
+  /**
+   * read only view of the items, it reflects later changes to the adapter without copying them
+   */
+  val items: kotlin.collections.List<T> = object : kotlin.collections.AbstractList<T>(), RandomAccess {
+    override val size: Int get() = indexer.size()
+
+    override fun get(index: Int): T = list!![index].t
+  }
+
+  /**
+   * @return a copy of the items, prefer [items] to only read them
+   */
+  fun getList(): List<T> {
+    val items = List<T>()
+    for (i in 0 until indexer.size()) items.add(list!![i].t)
+    return items
+  }
 
-  infix fun setList(list: List<T>) {
+  infix fun setList(list: List<T>) = editOnUi {
     this.indexer.setList(list)
+    searchIndex?.rebuild(list)
   }
 
   fun reverse() {
@@ -312,86 +806,98 @@ open class PromiseAdapter<T : Any>(list: List<T>,
     fun onLongClick(t: T, @IdRes id: Int)
   }
 
-  open inner class Holder(var view: View) : RecyclerView.ViewHolder(view) {
+  /**
+   * holders are not inner classes, a shared pool keeps them past the adapter that created them
+   */
+  open class Holder<T : Any>(var view: View) : RecyclerView.ViewHolder(view),
+      View.OnClickListener, View.OnLongClickListener {
     internal lateinit var viewableInstance: ViewableInstance<T>
+    /**
+     * adapter that bound this holder, clicks are dispatched to its listeners. Cleared when recycled
+     */
+    internal var owner: PromiseAdapter<T>? = null
+    /**
+     * viewable classes whose public views already dispatch to this holder
+     */
+    private var clickClass: Class<*>? = null
+    private var longClickClass: Class<*>? = null
+    /**
+     * views found by the first init on this holder and the viewable class that found them
+     */
+    private var views: Array<Any?>? = null
+    private var viewsClass: Class<*>? = null
 
     internal fun bind(viewableInstance: ViewableInstance<T>, args: Any?) {
       this.viewableInstance = viewableInstance
-      this.viewableInstance.viewable().init(view)
-      this.viewableInstance.viewable().bind(view, args)
+      val viewable = viewableInstance.viewable()
+      attach(viewableInstance, viewable)
+      viewable.bind(view, args)
       bindListener()
       bindLongClickListener()
     }
 
-    private fun bindListener() {
-      if (listener == null) return
-      val kClass = viewableInstance.viewClass
-      if (kClass != null) {
-        val fields = listOf(*kClass.java.declaredFields)
-        for (field in fields)
-          try {
-            val viewable = viewableInstance.viewClassObject
-            val view = field.get(viewable)
-            if (view is View)
-              view
-                  .setOnClickListener { v -> listener!!.onClick(viewableInstance.t, v.id) }
-          } catch (ignored: IllegalAccessException) {
-            /*LogUtil.e(TAG, "illegal access ", ignored);*/
-          }
-
-      } else {
-        val fields = listOf(*viewableInstance.viewable().javaClass.declaredFields)
-        for (field in fields)
-          try {
-            val viewable = viewableInstance.viewable()
-            val view = field.get(viewable)
-            if (view is View)
-              view
-                  .setOnClickListener { v -> listener!!.onClick(viewableInstance.t, v.id) }
-          } catch (ignored: IllegalAccessException) {
-            /*LogUtil.e(TAG, "illegal access ", ignored);*/
-          }
+    /**
+     * @return true when the payloads were applied to the instance this holder already shows
+     */
+    internal fun bindPartial(viewableInstance: ViewableInstance<T>, payloads: MutableList<Any>): Boolean {
+      if (!this::viewableInstance.isInitialized || this.viewableInstance !== viewableInstance ||
+          viewableInstance.boundView !== view) return false
+      return viewableInstance.viewable().bindPartial(view, payloads)
+    }
 
+    /**
+     * runs init for every new instance shown by this holder, [InitOnce] classes run it once per
+     * holder and later instances receive the views it found
+     */
+    private fun attach(viewableInstance: ViewableInstance<T>, viewable: Viewable) {
+      if (viewableInstance.boundView === view) return
+      val target = viewableInstance.target()
+      val views = views
+      if (target !is InitOnce) viewable.init(view)
+      else if (views != null && viewsClass === target.javaClass) viewableInstance.slots().write(target, views)
+      else {
+        viewable.init(view)
+        this.views = viewableInstance.slots().read(target)
+        viewsClass = target.javaClass
       }
+      viewableInstance.boundView = view
+    }
+
+    private fun target(): Any = viewableInstance.target()
+
+    private fun bindListener() {
+      if (owner?.listener == null) return
+      val target = target()
+      if (clickClass === target.javaClass) return
+      for (field in clickableFields(target.javaClass))
+        (field.get(target) as? View)?.setOnClickListener(this)
+      clickClass = target.javaClass
     }
 
     private fun bindLongClickListener() {
-      if (longClickListener == null) return
-      val kClass = viewableInstance.viewClass
-      if (kClass != null) {
-        val fields = listOf(*kClass.java.declaredFields)
-        for (field in fields)
-          try {
-            val viewable = viewableInstance.viewClassObject
-            val view = field.get(viewable)
-            if (view is View)
-              view
-                  .setOnLongClickListener { v ->
-                    longClickListener!!.onLongClick(viewableInstance.t, v.id)
-                    true
-                  }
-          } catch (ignored: IllegalAccessException) {
-          }
+      if (owner?.longClickListener == null) return
+      val target = target()
+      if (longClickClass === target.javaClass) return
+      for (field in clickableFields(target.javaClass))
+        (field.get(target) as? View)?.setOnLongClickListener(this)
+      longClickClass = target.javaClass
+    }
 
-      } else {
-        val fields = List(listOf(*viewableInstance.viewable().javaClass.declaredFields))
-        for (field in fields)
-          try {
-            val viewable = viewableInstance.viewable()
-            val view = field.get(viewable)
-            if (view is View)
-              view
-                  .setOnLongClickListener { v ->
-                    longClickListener!!.onLongClick(viewableInstance.t, v.id)
-                    true
-                  }
-          } catch (ignored: IllegalAccessException) {
-          }
-      }
+    override fun onClick(v: View) {
+      val owner = owner ?: return
+      val t = owner.itemAt(adapterPosition) ?: return
+      owner.listener?.onClick(t, v.id)
+    }
+
+    override fun onLongClick(v: View): Boolean {
+      val owner = owner ?: return false
+      val t = owner.itemAt(adapterPosition) ?: return false
+      owner.longClickListener?.onLongClick(t, v.id)
+      return true
     }
   }
 
-  inner class LoadingHolder(view1: View, loadingView: LoadingViewable) : Holder(view1) {
+  class LoadingHolder<T : Any>(view1: View, loadingView: LoadingViewable) : Holder<T>(view1) {
 
     init {
       loadingView.init(view1)
@@ -399,70 +905,269 @@ open class PromiseAdapter<T : Any>(list: List<T>,
 
   }
 
+  /**
+   * view type resolved once for every item class
+   */
+  private class ViewType(val viewClass: KClass<out Viewable>?, val layout: Int)
+
   private inner class Indexer {
     internal var reverse = false
+    /**
+     * identity index of items to their wrappers, a wrapper's position is its slot minus [base]
+     */
+    private val instances = IdentityHashMap<T, ViewableInstance<T>>()
+    private var base = 0
+    private var generation = 0
+    /**
+     * wrappers by id, hashed since ids come in any order when pages are prepended
+     */
+    private val ids = LongMap<ViewableInstance<T>>()
+    /**
+     * synthetic ids count up from just above [LOADER_ID], away from the ids of the items
+     */
+    private var nextId = LOADER_ID + 1
+    /**
+     * items of a setList whose diff is still running
+     */
+    private var pending: Collection<T>? = null
+
+    init {
+      list?.forEachIndexed { position, instance -> track(instance, position) }
+    }
+
+    private fun track(instance: ViewableInstance<T>, position: Int) {
+      instance.index = base + position
+      instances[instance.t] = instance
+      identify(instance)
+    }
+
+    private fun identify(instance: ViewableInstance<T>) {
+      val t = instance.t
+      instance.id = when {
+        idProvider != null -> idProvider!!(t)
+        t is Identifiable -> t.id
+        // wrappers without an item id keep the synthetic one they were given first
+        instance.id != RecyclerView.NO_ID -> instance.id
+        else -> nextId++
+      }
+      ids.put(instance.id, instance)
+    }
+
+    internal fun identifyAll() {
+      ids.clear()
+      for (instance in instances.values) identify(instance)
+    }
+
+    internal infix fun positionOf(t: T): Int {
+      val instance = instances[t] ?: return -1
+      return instance.index - base
+    }
+
+    internal infix fun positionOf(id: Long): Int {
+      val instance = ids[id] ?: return -1
+      return instance.index - base
+    }
+
     internal infix fun add(t: T) {
-      if (list == null) list = List()
-      if (!list!!.isEmpty()) {
-        if (reverse) list!!.reverse()
-        val instance = ViewableInstance(t)
-        list!!.add(instance)
-        if (reverse) list!!.reverse()
-        UIJobScheduler.submitJob { this@PromiseAdapter.notifyDataSetChanged() }
+      settle()
+      if (list == null) list = RingList()
+      val instance = ViewableInstance(t)
+      // a reversed adapter grows from the head, both ends are constant time in the ring
+      if (reverse) {
+        list!!.addFirst(instance)
+        base--
+        track(instance, 0)
+        notifyItemInserted(0)
       } else {
-        val instance = ViewableInstance(t)
-        list!!.add(instance)
-        UIJobScheduler.submitJob { notifyItemInserted(0) }
+        list!!.addLast(instance)
+        val position = list!!.size - 1
+        track(instance, position)
+        notifyItemInserted(position)
       }
     }
 
     internal infix fun unshift(t: T) {
-      if (list == null) list = List()
-      if (!list!!.isEmpty()) {
-        val list1 = List<T>()
-        list1.add(t)
-        list1.addAll(list!!.map { (it as ViewableInstance<T>).t })
-        setList(list1)
-        UIJobScheduler.submitJob { this@PromiseAdapter.notifyDataSetChanged() }
-      } else {
-        add(t)
-      }
+      settle()
+      if (list == null) list = RingList()
+      // existing instances keep their wrappers and bound holders, only the head moves
+      val instance = ViewableInstance(t)
+      list!!.addFirst(instance)
+      base--
+      track(instance, 0)
+      notifyItemInserted(0)
     }
 
     internal infix fun setList(list: List<T>) {
-      this@PromiseAdapter.list = list.map { ViewableInstance(it) }
-      UIJobScheduler.submitJob { this@PromiseAdapter.notifyDataSetChanged() }
+      val requested = ++generation
+      val callback = itemCallback
+      val current = this@PromiseAdapter.list
+      if (callback == null || current == null || current.isEmpty()) {
+        pending = null
+        replace(list)
+        this@PromiseAdapter.notifyDataSetChanged()
+        return
+      }
+      val oldItems = ArrayList(current)
+      val newItems = ArrayList<T>(list)
+      pending = newItems
+      AndroidPromise.instance().execute {
+        val result = DiffUtil.calculateDiff(object : DiffUtil.Callback() {
+          override fun getOldListSize(): Int = oldItems.size
+
+          override fun getNewListSize(): Int = newItems.size
+
+          override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean =
+              callback.areItemsTheSame(oldItems[oldItemPosition].t, newItems[newItemPosition])
+
+          override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean =
+              callback.areContentsTheSame(oldItems[oldItemPosition].t, newItems[newItemPosition])
+
+          override fun getChangePayload(oldItemPosition: Int, newItemPosition: Int): Any? =
+              callback.getChangePayload(oldItems[oldItemPosition].t, newItems[newItemPosition])
+        })
+        mainHandler.post {
+          // a newer setList has been issued while diffing, this result is stale
+          if (requested != generation) return@post
+          pending = null
+          replace(newItems)
+          result.dispatchUpdatesTo(this@PromiseAdapter)
+        }
+      }
+    }
+
+    /**
+     * shows the items of a setList still being diffed right away, a change made to the adapter
+     * meanwhile applies to them and the diff, made against the previous items, is dropped
+     */
+    private fun settle() {
+      val pending = pending ?: return
+      this.pending = null
+      generation++
+      replace(pending)
+      this@PromiseAdapter.notifyDataSetChanged()
+    }
+
+    private infix fun replace(list: Collection<T>) {
+      val items = RingList<ViewableInstance<T>>(list.size)
+      val previous = IdentityHashMap(instances)
+      instances.clear()
+      ids.clear()
+      base = 0
+      for (t in list) {
+        // items that are still present keep their wrappers
+        val instance = previous[t] ?: ViewableInstance(t)
+        track(instance, items.size)
+        items.addLast(instance)
+      }
+      this@PromiseAdapter.list = items
     }
 
     internal infix fun remove(t: T) {
+      settle()
       if (list == null) return
-      val instance = list!!.find { i -> (i as ViewableInstance<T>).t === t }
-      list!!.remove(instance)
-      UIJobScheduler.submitJob { this@PromiseAdapter.notifyDataSetChanged() }
+      val instance = instances.remove(t) ?: return
+      ids.remove(instance.id)
+      val position = instance.index - base
+      list!!.removeAt(position)
+      // re-slot whichever side of the removed position is shorter
+      if (position < list!!.size - position) {
+        for (i in 0 until position) list!![i].index++
+        base++
+      } else for (i in position until list!!.size) list!![i].index--
+      notifyItemRemoved(position)
     }
 
-    internal infix fun update(viewHolder: T) {
-      /* if (list == null) return;
-      ViewableInstance<T> v = list.find(i -> i.getT() == viewHolder);
-      if (v == null) return;
-      if (v.viewable().index() >= list.size()) return;
-      list.set(v.viewable().index(), v);
-      notifyItemChanged(viewHolder.index());
-      Promise.instance().executeOnUi(PromiseAdapter.this::notifyDataSetChanged);*/
+    /**
+     * @return the item the update replaced, itself when updated in place, or null when not in the adapter
+     */
+    internal fun update(t: T, payload: Any?): T? {
+      settle()
+      var instance = instances[t]
+      var old = t
+      if (instance == null) {
+        // a new copy of an item already in the adapter replaces it in its wrapper
+        if (idProvider == null && t !is Identifiable) return null
+        instance = ids[idProvider?.invoke(t) ?: (t as Identifiable).id] ?: return null
+        instances.remove(instance.t)
+        old = instance.t
+        instance.replace(t)
+        instances[t] = instance
+      }
+      val position = instance.index - base
+      notifyItemChanged(position, payload)
+      return old
     }
 
     internal fun updateAll() {
-      UIJobScheduler.submitJob { this@PromiseAdapter.notifyDataSetChanged() }
+      settle()
+      this@PromiseAdapter.notifyDataSetChanged()
     }
 
     internal infix fun add(list: List<T>) {
-      for (t in list) add(t)
+      settle()
+      if (list.isEmpty()) return
+      if (this@PromiseAdapter.list == null) this@PromiseAdapter.list = RingList(list.size)
+      val batch = ArrayList<ViewableInstance<T>>(list.size)
+      for (t in list) batch.add(ViewableInstance(t))
+      // a reversed adapter places every new item at the head, so the batch lands in reverse order
+      if (reverse) {
+        batch.reverse()
+        this@PromiseAdapter.list!!.addAll(0, batch)
+        base -= batch.size
+        batch.forEachIndexed { position, instance -> track(instance, position) }
+        notifyItemRangeInserted(0, batch.size)
+      } else {
+        val start = this@PromiseAdapter.list!!.size
+        this@PromiseAdapter.list!!.addAll(batch)
+        batch.forEachIndexed { position, instance -> track(instance, start + position) }
+        notifyItemRangeInserted(start, batch.size)
+      }
+    }
+
+    internal infix fun prepend(list: List<T>) {
+      settle()
+      if (list.isEmpty()) return
+      if (this@PromiseAdapter.list == null) this@PromiseAdapter.list = RingList(list.size)
+      val batch = ArrayList<ViewableInstance<T>>(list.size)
+      for (t in list) batch.add(ViewableInstance(t))
+      this@PromiseAdapter.list!!.addAll(0, batch)
+      base -= batch.size
+      batch.forEachIndexed { position, instance -> track(instance, position) }
+      notifyItemRangeInserted(0, batch.size)
+    }
+
+    /**
+     * removes a range at either end of the list, dropping the wrappers of its items
+     *
+     * @return the removed items
+     */
+    internal fun drop(from: Int, count: Int): kotlin.collections.List<T> {
+      settle()
+      val list = this@PromiseAdapter.list ?: return emptyList()
+      val removed = minOf(count, list.size - from)
+      if (removed <= 0) return emptyList()
+      Conditions.checkState(from == 0 || from + removed == list.size, "only the ends of the list can be dropped")
+      val dropped = ArrayList<T>(removed)
+      repeat(removed) {
+        val instance = if (from == 0) list.removeAt(0) else list.removeAt(list.size - 1)
+        instances.remove(instance.t)
+        ids.remove(instance.id)
+        dropped.add(instance.t)
+      }
+      // positions before the head move down with it, positions at the tail are unchanged
+      if (from == 0) base += removed
+      notifyItemRangeRemoved(from, removed)
+      return dropped
     }
 
     internal fun clear() {
+      settle()
       if (list == null || list!!.isEmpty()) return
       list!!.clear()
-      UIJobScheduler.submitJob { this@PromiseAdapter.notifyDataSetChanged() }
+      instances.clear()
+      ids.clear()
+      base = 0
+      this@PromiseAdapter.notifyDataSetChanged()
     }
 
     internal fun size(): Int = if (list == null || list!!.isEmpty()) 0 else list!!.size
@@ -528,7 +1233,45 @@ open class PromiseAdapter<T : Any>(list: List<T>,
   }
 
   companion object {
+    /**
+     * public view fields of every viewable class, scanned once per class
+     */
+    private val clickableFields = HashMap<Class<*>, Array<Field>>()
+
+    private fun clickableFields(type: Class<*>): Array<Field> = clickableFields.getOrPut(type) {
+      type.declaredFields.filter {
+        Modifier.isPublic(it.modifiers) && !Modifier.isStatic(it.modifiers) &&
+            View::class.java.isAssignableFrom(it.type)
+      }.onEach { it.isAccessible = true }.toTypedArray()
+    }
+
+    /**
+     * number of query results a search helper remembers
+     */
+    private const val SEARCH_SNAPSHOTS = 8
+
+    /**
+     * a scan checks whether it has been cancelled every this many items plus one
+     */
+    private const val CANCEL_CHECK_MASK = 0xFF
+
+    private val mainHandler by lazy { Handler(Looper.getMainLooper()) }
+
+    /**
+     * default number of items above which a parallel search splits the scan
+     */
+    const val PARALLEL_SEARCH_THRESHOLD = 50000
+
+    private val SEARCH_PARALLELISM = Runtime.getRuntime().availableProcessors()
+
+    private val searchExecutor: ExecutorService by lazy {
+      Executors.newFixedThreadPool(maxOf(SEARCH_PARALLELISM - 1, 1)) { runnable ->
+        Thread(runnable, "promise-search").apply { isDaemon = true }
+      }
+    }
+
     const val TYPE_NORMAL = 1;
     const val TYPE_LOADING = 2
+    const val LOADER_ID = Long.MIN_VALUE
   }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import android.view.View
+import java.lang.reflect.Field
+import java.lang.reflect.Modifier
+
+/**
+ * View slots of classes without a generated factory, the view fields are looked up once per class
+ */
+internal class ReflectiveViewSlots private constructor(private val fields: Array<Field>) : ViewSlots<Any> {
+
+  override fun read(holder: Any): Array<Any?> = Array(fields.size) { fields[it].get(holder) }
+
+  override fun write(holder: Any, views: Array<Any?>) {
+    for (i in fields.indices) fields[i].set(holder, views[i])
+  }
+
+  companion object {
+    private val slots = HashMap<Class<*>, ReflectiveViewSlots>()
+
+    fun of(type: Class<*>): ReflectiveViewSlots = slots.getOrPut(type) {
+      val fields = ArrayList<Field>()
+      var current: Class<*>? = type
+      while (current != null && current != Any::class.java) {
+        for (field in current.declaredFields)
+          if (!Modifier.isStatic(field.modifiers) && !Modifier.isFinal(field.modifiers) &&
+              View::class.java.isAssignableFrom(field.type)) {
+            field.isAccessible = true
+            fields.add(field)
+          }
+        current = current.superclass
+      }
+      ReflectiveViewSlots(fields.toTypedArray())
+    }
+  }
+}
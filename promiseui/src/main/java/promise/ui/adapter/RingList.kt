@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+/**
+ * Random access list backed by a circular array.
+ * Inserting or removing at either end is constant time, inserting or removing
+ * in the middle only moves the elements on the shorter side of the index
+ */
+internal class RingList<E>(initialCapacity: Int = 16) : AbstractMutableList<E>(), RandomAccess {
+
+  private var elements: Array<Any?> = arrayOfNulls(Integer.highestOneBit(maxOf(initialCapacity, 8) - 1) shl 1)
+  private var head = 0
+  private var count = 0
+
+  override val size: Int get() = count
+
+  private fun physical(index: Int): Int = (head + index) and (elements.size - 1)
+
+  private fun checkIndex(index: Int) {
+    if (index < 0 || index >= count) throw IndexOutOfBoundsException("Index: $index, Size: $count")
+  }
+
+  private fun ensureCapacity(required: Int) {
+    if (required <= elements.size) return
+    var capacity = elements.size
+    while (capacity < required) capacity = capacity shl 1
+    val grown = arrayOfNulls<Any?>(capacity)
+    for (i in 0 until count) grown[i] = elements[physical(i)]
+    elements = grown
+    head = 0
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  override fun get(index: Int): E {
+    checkIndex(index)
+    return elements[physical(index)] as E
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  override fun set(index: Int, element: E): E {
+    checkIndex(index)
+    val slot = physical(index)
+    val old = elements[slot] as E
+    elements[slot] = element
+    return old
+  }
+
+  fun addFirst(element: E) = add(0, element)
+
+  fun addLast(element: E) = add(count, element)
+
+  override fun add(index: Int, element: E) {
+    if (index < 0 || index > count) throw IndexOutOfBoundsException("Index: $index, Size: $count")
+    ensureCapacity(count + 1)
+    if (index < count - index) {
+      head = (head - 1) and (elements.size - 1)
+      for (i in 0 until index) elements[physical(i)] = elements[physical(i + 1)]
+    } else {
+      for (i in count downTo index + 1) elements[physical(i)] = elements[physical(i - 1)]
+    }
+    elements[physical(index)] = element
+    count++
+    modCount++
+  }
+
+  override fun addAll(index: Int, elements: Collection<E>): Boolean {
+    if (index < 0 || index > count) throw IndexOutOfBoundsException("Index: $index, Size: $count")
+    val added = elements.size
+    if (added == 0) return false
+    ensureCapacity(count + added)
+    if (index < count - index) {
+      head = (head - added) and (this.elements.size - 1)
+      for (i in 0 until index) this.elements[physical(i)] = this.elements[physical(i + added)]
+    } else {
+      for (i in count - 1 downTo index) this.elements[physical(i + added)] = this.elements[physical(i)]
+    }
+    var i = index
+    for (element in elements) this.elements[physical(i++)] = element
+    count += added
+    modCount++
+    return true
+  }
+
+  override fun addAll(elements: Collection<E>): Boolean = addAll(count, elements)
+
+  @Suppress("UNCHECKED_CAST")
+  override fun removeAt(index: Int): E {
+    checkIndex(index)
+    val removed = elements[physical(index)] as E
+    if (index < count - 1 - index) {
+      for (i in index downTo 1) elements[physical(i)] = elements[physical(i - 1)]
+      elements[head] = null
+      head = (head + 1) and (elements.size - 1)
+    } else {
+      for (i in index until count - 1) elements[physical(i)] = elements[physical(i + 1)]
+      elements[physical(count - 1)] = null
+    }
+    count--
+    modCount++
+    return removed
+  }
+
+  override fun clear() {
+    for (i in 0 until count) elements[physical(i)] = null
+    head = 0
+    count = 0
+    modCount++
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import promise.commons.AndroidPromise
+import promise.commons.model.List
+import java.util.*
+
+/**
+ * Trigram inverted index over the keys of [IndexedSearchable] items.
+ * Queries of three or more characters intersect the posting lists of their trigrams and only
+ * check the candidates left, shorter queries scan the keys.
+ * The index is built on a background thread, changes made while it builds are replayed after.
+ * While any item is not [IndexedSearchable] the index answers no queries and the items are scanned
+ *
+ * @param background runs the builds off the main thread
+ */
+class SearchIndex<T : Any> internal constructor(
+    private val background: (() -> Unit) -> Unit = { job -> AndroidPromise.instance().execute { job() } }) {
+
+  private val lock = Any()
+  private val pendingLock = Any()
+
+  private val docs = ArrayList<T?>()
+  private val keys = ArrayList<String?>()
+  private var orders = LongArray(INITIAL_CAPACITY)
+  private val docIds = IdentityHashMap<T, Int>()
+  private val postings = HashMap<Long, Postings>()
+  private val removed = BitSet()
+  private var head = 0L
+  private var tail = 0L
+  /**
+   * number of items that are not [IndexedSearchable] and can only be found by a scan
+   */
+  private var unindexed = 0
+
+  /**
+   * changes made while a build runs, null once the index is ready
+   */
+  private var pending: ArrayList<() -> Unit>? = null
+  private var generation = 0
+
+  /**
+   * replaces the indexed items, the index answers no queries until the build is done
+   */
+  internal fun rebuild(items: Collection<T>) {
+    val snapshot = ArrayList(items)
+    val requested = synchronized(pendingLock) {
+      pending = ArrayList()
+      ++generation
+    }
+    background {
+      val current = synchronized(lock) {
+        // a newer build was requested before this one started
+        if (requested != synchronized(pendingLock) { generation }) false
+        else {
+          reset()
+          unindexed = 0
+          for (t in snapshot) index(t, false)
+          true
+        }
+      }
+      if (current) drain(requested)
+    }
+  }
+
+  private fun drain(requested: Int) {
+    while (true) {
+      val changes = synchronized(pendingLock) {
+        // a newer build replaces everything indexed by this one
+        if (requested != generation) return
+        val changes = pending!!
+        if (changes.isEmpty()) {
+          pending = null
+          return
+        }
+        pending = ArrayList()
+        changes
+      }
+      synchronized(lock) { for (change in changes) change() }
+    }
+  }
+
+  private fun change(change: () -> Unit) {
+    synchronized(pendingLock) {
+      val pending = pending
+      if (pending != null) {
+        pending.add(change)
+        return
+      }
+    }
+    synchronized(lock) { change() }
+  }
+
+  internal fun add(t: T, atHead: Boolean) = change { index(t, atHead) }
+
+  internal fun addAll(items: Collection<T>, atHead: Boolean) {
+    val snapshot = ArrayList(items)
+    change { for (t in snapshot) index(t, atHead) }
+  }
+
+  internal fun remove(t: T) = change { unindex(t) }
+
+  /**
+   * indexes the current key of an item updated in place or replaced by a copy, in the old one's place
+   */
+  internal fun replace(old: T, new: T) = change {
+    val order = unindex(old)
+    index(new, false)
+    val doc = docIds[new]
+    if (order != null && doc != null) orders[doc] = order
+  }
+
+  internal fun clear() = change {
+    reset()
+    unindexed = 0
+  }
+
+  /**
+   * @return the indexed items matching the query in adapter order, or null while building
+   * or while some items are not indexed
+   */
+  fun query(query: String): List<T>? {
+    synchronized(pendingLock) { if (pending != null) return null }
+    val needle = normalize(query)
+    synchronized(lock) {
+      if (unindexed > 0) return null
+      val matches = ArrayList<Int>()
+      if (needle.length < TRIGRAM) {
+        for (doc in keys.indices) if (keys[doc]?.contains(needle) == true) matches.add(doc)
+      } else {
+        val lists = ArrayList<Postings>()
+        for (i in 0..needle.length - TRIGRAM) {
+          val list = postings[trigram(needle, i)] ?: return List()
+          if (!lists.contains(list)) lists.add(list)
+        }
+        lists.sortBy { it.size }
+        var candidates = lists[0].copy()
+        for (i in 1 until lists.size) {
+          candidates = candidates.intersect(lists[i])
+          if (candidates.size == 0) return List()
+        }
+        // trigrams of the query may be spread over the key, check the candidates
+        for (i in 0 until candidates.size) {
+          val doc = candidates[i]
+          if (keys[doc]?.contains(needle) == true) matches.add(doc)
+        }
+      }
+      matches.sortBy { orders[it] }
+      val results = List<T>()
+      for (doc in matches) results.add(docs[doc]!!)
+      return results
+    }
+  }
+
+  private fun reset() {
+    docs.clear()
+    keys.clear()
+    docIds.clear()
+    postings.clear()
+    removed.clear()
+    head = 0
+    tail = 0
+  }
+
+  private fun index(t: T, atHead: Boolean) {
+    if (t !is IndexedSearchable) {
+      unindexed++
+      return
+    }
+    if (docIds.containsKey(t)) return
+    val doc = docs.size
+    val key = normalize(t.searchKey())
+    docs.add(t)
+    keys.add(key)
+    docIds[t] = doc
+    if (doc == orders.size) orders = orders.copyOf(doc * 2)
+    orders[doc] = if (atHead) --head else tail++
+    for (i in 0..key.length - TRIGRAM) {
+      val list = postings.getOrPut(trigram(key, i)) { Postings() }
+      // docs are indexed in increasing order so a repeated trigram is always the last entry
+      if (list.size == 0 || list[list.size - 1] != doc) list.add(doc)
+    }
+  }
+
+  /**
+   * @return the order of the removed item, or null when it was not indexed
+   */
+  private fun unindex(t: T): Long? {
+    if (t !is IndexedSearchable) {
+      unindexed--
+      return null
+    }
+    val doc = docIds.remove(t) ?: return null
+    val order = orders[doc]
+    docs[doc] = null
+    keys[doc] = null
+    removed.set(doc)
+    // posting lists are only cleaned once most of their entries point to removed items
+    if (removed.cardinality() > docIds.size) compact()
+    return order
+  }
+
+  /**
+   * renumbers the remaining items, dropping the removed ones from every posting list
+   */
+  private fun compact() {
+    val items = ArrayList<T>(docIds.size)
+    val itemOrders = LongArray(docIds.size)
+    for (doc in docs.indices) docs[doc]?.let {
+      itemOrders[items.size] = orders[doc]
+      items.add(it)
+    }
+    val (first, last) = head to tail
+    reset()
+    for (t in items) index(t, false)
+    for (doc in items.indices) orders[doc] = itemOrders[doc]
+    head = first
+    tail = last
+  }
+
+  /**
+   * growable sorted array of doc ids
+   */
+  private class Postings(private var docs: IntArray = IntArray(4), var size: Int = 0) {
+
+    operator fun get(index: Int): Int = docs[index]
+
+    fun add(doc: Int) {
+      if (size == docs.size) docs = docs.copyOf(size * 2)
+      docs[size++] = doc
+    }
+
+    fun copy(): Postings = Postings(docs.copyOf(maxOf(size, 1)), size)
+
+    fun intersect(other: Postings): Postings {
+      val result = Postings(IntArray(maxOf(minOf(size, other.size), 1)))
+      var i = 0
+      var j = 0
+      while (i < size && j < other.size) when {
+        docs[i] < other.docs[j] -> i++
+        docs[i] > other.docs[j] -> j++
+        else -> {
+          result.add(docs[i])
+          i++
+          j++
+        }
+      }
+      return result
+    }
+  }
+
+  companion object {
+    private const val TRIGRAM = 3
+    private const val INITIAL_CAPACITY = 16
+
+    private fun normalize(text: String): String = text.toLowerCase(Locale.ROOT)
+
+    private fun trigram(text: String, start: Int): Long =
+        (text[start].toLong() shl 32) or (text[start + 1].toLong() shl 16) or text[start + 2].toLong()
+  }
+}
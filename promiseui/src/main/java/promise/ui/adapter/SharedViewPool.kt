@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import android.content.Context
+import android.content.ContextWrapper
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleEventObserver
+import androidx.lifecycle.LifecycleOwner
+import androidx.recyclerview.widget.RecyclerView
+import java.util.*
+
+/**
+ * Recycled view pools shared by every adapter of a screen, view types are layout resources
+ * so holders inflated by one list are reused by the others.
+ * A pool lives as long as the lifecycle owner of the context it was created for
+ */
+object SharedViewPool {
+  private val pools = HashMap<LifecycleOwner, RecyclerView.RecycledViewPool>()
+
+  /**
+   * @return the pool of the screen hosting the context, or null when the context has no lifecycle
+   */
+  fun of(context: Context): RecyclerView.RecycledViewPool? {
+    val owner = lifecycleOwner(context) ?: return null
+    if (owner.lifecycle.currentState == Lifecycle.State.DESTROYED) return null
+    return pools.getOrPut(owner) {
+      owner.lifecycle.addObserver(LifecycleEventObserver { source, event ->
+        if (event == Lifecycle.Event.ON_DESTROY) pools.remove(source)?.clear()
+      })
+      RecyclerView.RecycledViewPool()
+    }
+  }
+
+  private fun lifecycleOwner(context: Context): LifecycleOwner? {
+    var current: Context? = context
+    while (current != null) {
+      if (current is LifecycleOwner) return current
+      current = (current as? ContextWrapper)?.baseContext
+    }
+    return null
+  }
+}
@@ -15,7 +15,24 @@ package promise.ui.adapter;
 
 import android.view.View;
 
+import java.util.List;
+
+/**
+ * init is called for every new holder shown in an item view to look up its child views,
+ * holders implementing {@link InitOnce} instead receive the views found by the first one.
+ * bind is called for every item bound to the view
+ */
 public interface ViewHolder {
   void init(View view);
   void bind(View view, Object args);
+
+  /**
+   * applies the change payloads of an item already bound to the view,
+   * such as a counter or a read flag, without binding the whole item again
+   *
+   * @return false to have the item fully bound instead
+   */
+  default boolean bindPartial(View view, List<Object> payloads) {
+    return false;
+  }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter;
+
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import promise.commons.data.log.LogUtil;
+
+/**
+ * Lookup table of the {@link ViewableFactory} generated for every {@link ViewableEntity} type.
+ * The index generated for every module is found through {@link ServiceLoader} and loaded once
+ * on first use, entities without a factory fall back to reading the annotation at runtime
+ */
+public final class ViewableFactories {
+
+  private static final String TAG = LogUtil.makeTag(ViewableFactories.class);
+
+  private static final Map<Class<?>, ViewableFactory<?>> factories = new ConcurrentHashMap<>();
+  private static volatile boolean indexLoaded = false;
+
+  private ViewableFactories() {
+  }
+
+  public static <T> void register(Class<T> type, ViewableFactory<T> factory) {
+    factories.put(type, factory);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> ViewableFactory<T> get(Class<T> type) {
+    if (!indexLoaded) loadIndexes();
+    return (ViewableFactory<T>) factories.get(type);
+  }
+
+  private static synchronized void loadIndexes() {
+    if (indexLoaded) return;
+    try {
+      for (Index index : ServiceLoader.load(Index.class, ViewableFactories.class.getClassLoader()))
+        index.register(factories);
+    } catch (ServiceConfigurationError e) {
+      LogUtil.e(TAG, "could not load the viewable factory indexes ", e);
+    }
+    indexLoaded = true;
+  }
+
+  /**
+   * Implemented by the index generated for every module, listed in
+   * META-INF/services/promise.ui.adapter.ViewableFactories$Index
+   */
+  public interface Index {
+    void register(Map<Class<?>, ViewableFactory<?>> factories);
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter;
+
+import androidx.annotation.LayoutRes;
+import androidx.annotation.Nullable;
+
+/**
+ * Creates the view holder of a {@link ViewableEntity} type without reflection,
+ * implementations are generated by the promise ui compiler
+ *
+ * @param <T> the annotated entity type
+ */
+public interface ViewableFactory<T> {
+
+  @LayoutRes
+  int layout();
+
+  ViewHolder create(T t);
+
+  /**
+   * @return the view slots of the created view holders, or null when they are not accessible
+   */
+  @Nullable
+  ViewSlots<ViewHolder> slots();
+}
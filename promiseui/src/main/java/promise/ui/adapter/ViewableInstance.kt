@@ -14,11 +14,16 @@
 package promise.ui.adapter
 
 import android.view.View
+import androidx.recyclerview.widget.RecyclerView
 import promise.commons.makeInstance
 import promise.ui.Viewable
 import kotlin.reflect.KClass
 
-class ViewableInstance<T>(val t: T) {
+@Suppress("UNCHECKED_CAST")
+class ViewableInstance<T>(t: T) {
+
+  var t: T = t
+    private set
 
   private var viewable: Viewable? = null
 
@@ -26,7 +31,30 @@ class ViewableInstance<T>(val t: T) {
 
   var viewClassObject: Any? = null
 
+  /**
+   * slot of this instance in the adapter that holds it, see PromiseAdapter.Indexer
+   */
+  internal var index = 0
+
+  /**
+   * stable id reported to RecyclerView for this instance
+   */
+  internal var id = RecyclerView.NO_ID
+
+  /**
+   * view type resolved for this instance, 0 until the adapter first asks for it
+   */
+  internal var viewType = 0
+
+  /**
+   * item view whose child views the viewable currently holds
+   */
+  internal var boundView: View? = null
+
+  private var slots: ViewSlots<Any>? = null
+
   private fun convert() {
+    val t = t
     this.viewable = when {
       viewClass != null -> {
         viewClassObject =  makeInstance(viewClass!!, arrayOf(t as Any)) as Viewable
@@ -34,28 +62,67 @@ class ViewableInstance<T>(val t: T) {
       }
       t is LoadingViewable -> throw IllegalStateException("Data type must not implement LoadingViewable")
       t is Viewable -> t
-      (t as Any).javaClass.isAnnotationPresent(ViewableEntity::class.java) -> {
-        val annotation = t.javaClass.getAnnotation(ViewableEntity::class.java)!!
-        viewClass = annotation.viewHolderClass
-        viewClassObject = makeInstance(viewClass!!, arrayOf(t as Any)) as ViewHolder
-        object : Viewable {
-          override fun layout(): Int = annotation.layoutResource
-          override fun init(view: View?) {
-            (viewClassObject!! as ViewHolder).init(view)
+      else -> {
+        val factory = ViewableFactories.get((t as Any).javaClass)
+        when {
+          factory != null -> {
+            slots = factory.slots() as ViewSlots<Any>?
+            wrap(factory.create(t), factory.layout())
           }
-          override fun bind(view: View?, args: Any?) {
-            (viewClassObject!! as ViewHolder).bind(view, args)
+          t.javaClass.isAnnotationPresent(ViewableEntity::class.java) -> {
+            val annotation = t.javaClass.getAnnotation(ViewableEntity::class.java)!!
+            wrap(makeInstance(annotation.viewHolderClass, arrayOf(t as Any)) as ViewHolder,
+                annotation.layoutResource)
           }
+          else -> throw IllegalStateException("$t must be an instance on Viewable or have Viewable annotation")
         }
       }
-      else -> throw IllegalStateException("$t must be an instance on Viewable or have Viewable annotation")
     }
 
   }
 
+  private fun wrap(viewHolder: ViewHolder, layout: Int): Viewable {
+    viewClass = viewHolder.javaClass.kotlin
+    viewClassObject = viewHolder
+    return object : Viewable {
+      override fun layout(): Int = layout
+      override fun init(view: View?) {
+        viewHolder.init(view)
+      }
+      override fun bind(view: View?, args: Any?) {
+        viewHolder.bind(view, args)
+      }
+      override fun bindPartial(view: View?, payloads: MutableList<Any>?): Boolean =
+          viewHolder.bindPartial(view, payloads)
+    }
+  }
+
+  /**
+   * the object whose fields hold the views, the view holder for annotated entities
+   */
+  internal fun target(): Any = viewClassObject ?: viewable()
+
+  internal fun slots(): ViewSlots<Any> {
+    if (slots == null) slots = ReflectiveViewSlots.of(target().javaClass)
+    return slots!!
+  }
+
   fun viewable(): Viewable {
     if (viewable != null) return viewable!!
     convert()
     return viewable!!
   }
+
+  /**
+   * swaps the wrapped item, the viewable is recreated for the new item on next use
+   */
+  internal fun replace(t: T) {
+    this.t = t
+    viewable = null
+    viewType = 0
+    viewClass = null
+    viewClassObject = null
+    boundView = null
+    slots = null
+  }
 }
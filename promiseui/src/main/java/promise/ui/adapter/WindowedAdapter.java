@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter;
+
+import promise.commons.model.List;
+
+/**
+ * Paginated adapter holding a window of the data source, pages leaving the window
+ * are dropped from either end and loaded again when scrolled back to
+ */
+public interface WindowedAdapter<T> extends PaginatedAdapter<T> {
+
+   void prepend(List<T> list);
+
+   void dropFirst(int count);
+
+   void dropLast(int count);
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class CachingDataSourceTest {
+
+  private val source = FakeDataSource()
+  private var now = 0L
+  private val cache = CachingDataSource(source, 2, 1000).also { it.clock = { now } }
+
+  private fun load(skip: Int, take: Int = 10): Receiver = Receiver().also { cache.load(it.result, skip, take) }
+
+  @Test
+  fun loadedPage_isServedFromMemory() {
+    val first = load(0)
+    source.complete(0)
+    val second = load(0)
+    assertEquals(1, source.loads.size)
+    assertEquals(first.items, second.items)
+    assertEquals(1L, cache.hits())
+    assertEquals(1L, cache.misses())
+  }
+
+  @Test
+  fun expiredPage_isLoadedAgain() {
+    load(0)
+    source.complete(0)
+    now = 1000
+    load(0)
+    assertEquals(2, source.loads.size)
+  }
+
+  @Test
+  fun concurrentLoads_shareOneLoadAndGetTheirOwnLists() {
+    val first = load(0)
+    val second = load(0)
+    assertEquals(1, source.loads.size)
+    source.complete(0)
+    assertEquals((0 until 10).toList(), first.items)
+    assertEquals(first.items, second.items)
+    assertNotSame(first.items, second.items)
+  }
+
+  @Test
+  fun leastRecentlyUsedPage_isDropped() {
+    for (skip in listOf(0, 10, 20)) {
+      load(skip)
+      source.complete(source.loads.size - 1)
+    }
+    load(20)
+    assertEquals(3, source.loads.size)
+    load(0)
+    assertEquals(4, source.loads.size)
+  }
+
+  @Test
+  fun loadFinishingAfterInvalidate_isNotCachedAndLoadsAgain() {
+    val waiting = load(0)
+    cache.invalidate()
+    source.complete(0)
+    // the stale page is neither delivered nor cached, the caller waits for a fresh load
+    assertNull(waiting.items)
+    assertEquals(2, source.loads.size)
+    source.complete(1)
+    assertEquals((0 until 10).toList(), waiting.items)
+    load(0)
+    assertEquals(2, source.loads.size)
+  }
+
+  @Test
+  fun failedLoad_givesItsErrorToEveryWaitingCaller() {
+    val first = load(0)
+    val second = load(0)
+    val error = IllegalStateException("offline")
+    source.fail(0, error)
+    assertEquals(1, source.loads.size)
+    assertSame(error, first.error)
+    assertSame(error, second.error)
+    // the failed page is not cached, the next load tries again
+    load(0)
+    assertEquals(2, source.loads.size)
+  }
+}
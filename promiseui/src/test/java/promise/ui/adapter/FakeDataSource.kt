@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import promise.commons.model.List
+import promise.commons.tx.PromiseResult
+
+/**
+ * a load made on a [FakeDataSource]
+ */
+internal class Load(val response: PromiseResult<List<Int>, *>, val skip: Int, val take: Int)
+
+/**
+ * data source whose loads complete when the test says so, item i of the source is i
+ */
+internal class FakeDataSource : CountedDataSource<Int> {
+  val loads = ArrayList<Load>()
+
+  fun skips(): kotlin.collections.List<Int> = loads.map { it.skip }
+
+  override fun count(response: PromiseResult<Int, *>) {
+  }
+
+  override fun load(response: PromiseResult<List<Int>, *>, skip: Int, take: Int) {
+    loads.add(Load(response, skip, take))
+  }
+
+  fun complete(index: Int) {
+    val load = loads[index]
+    load.response.response(List<Int>().apply { for (i in load.skip until load.skip + load.take) add(i) })
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  fun fail(index: Int, error: Throwable = IllegalStateException()) =
+      (loads[index].response as PromiseResult<List<Int>, Throwable>).error(error)
+}
+
+/**
+ * response keeping what a data source delivered to it
+ */
+internal class Receiver {
+  var items: List<Int>? = null
+  var error: Throwable? = null
+  val result: PromiseResult<List<Int>, Throwable> = PromiseResult<List<Int>, Throwable>()
+      .withCallback { items = it }
+      .withErrorCallback { error = it }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import io.reactivex.Flowable
+import io.reactivex.schedulers.TestScheduler
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+class FlowableDataSourceTest {
+
+  private val scheduler = TestScheduler()
+  private var subscriptions = 0
+  private var requested = 0L
+
+  private fun FlowableDataSource<Int>.load(skip: Int, take: Int = 10): Receiver =
+      Receiver().also { load(it.result, skip, take) }
+
+  private fun counted(source: Flowable<Int>): Flowable<Int> =
+      Flowable.defer { subscriptions++; source }.doOnRequest { requested += it }
+
+  @Test
+  fun pagesInOrder_shareOneSubscriptionAndOnlyRequestTheirItems() {
+    val dataSource = FlowableDataSource(counted(Flowable.range(0, 1000)))
+    val first = dataSource.load(0)
+    val second = dataSource.load(10)
+    assertEquals((0 until 10).toList(), first.items)
+    assertEquals((10 until 20).toList(), second.items)
+    assertEquals(1, subscriptions)
+    assertEquals(20L, requested)
+  }
+
+  @Test
+  fun completion_givesTheLastPagesWhatIsLeft() {
+    val dataSource = FlowableDataSource(Flowable.range(0, 15))
+    val first = dataSource.load(0)
+    val second = dataSource.load(10)
+    assertEquals((0 until 10).toList(), first.items)
+    assertEquals((10 until 15).toList(), second.items)
+    assertEquals(emptyList<Int>(), dataSource.load(20).items)
+  }
+
+  @Test
+  fun outOfOrderOffset_isReadOnItsOwnWithoutFailingWaitingLoads() {
+    val dataSource = FlowableDataSource(counted(Flowable.range(0, 1000).subscribeOn(scheduler)))
+    val first = dataSource.load(0)
+    val second = dataSource.load(10)
+    val head = dataSource.load(50)
+    scheduler.triggerActions()
+    assertEquals((0 until 10).toList(), first.items)
+    assertEquals((10 until 20).toList(), second.items)
+    assertEquals((50 until 60).toList(), head.items)
+    assertNull(first.error)
+    assertNull(second.error)
+    assertEquals(2, subscriptions)
+    // the tail still continues where it stopped
+    val third = dataSource.load(20)
+    scheduler.triggerActions()
+    assertEquals((20 until 30).toList(), third.items)
+    assertEquals(2, subscriptions)
+  }
+
+  @Test
+  fun idleTail_movesToAnotherOffset() {
+    val dataSource = FlowableDataSource(counted(Flowable.range(0, 1000)))
+    dataSource.load(0)
+    val moved = dataSource.load(100)
+    val next = dataSource.load(110)
+    assertEquals((100 until 110).toList(), moved.items)
+    assertEquals((110 until 120).toList(), next.items)
+    assertEquals(2, subscriptions)
+  }
+
+  @Test
+  fun idleStream_neverTimesOut() {
+    val dataSource = FlowableDataSource(counted(Flowable.range(0, 1000).subscribeOn(scheduler)),
+        0, 1000, scheduler)
+    val page = dataSource.load(0)
+    scheduler.triggerActions()
+    assertEquals((0 until 10).toList(), page.items)
+    scheduler.advanceTimeBy(10, TimeUnit.SECONDS)
+    assertEquals(1, subscriptions)
+    val next = dataSource.load(10)
+    scheduler.triggerActions()
+    assertEquals((10 until 20).toList(), next.items)
+  }
+
+  @Test
+  fun waitingLoad_timesOutAfterItsRetries() {
+    val dataSource = FlowableDataSource(counted(Flowable.never()), 1, 1000, scheduler)
+    val page = dataSource.load(0)
+    scheduler.advanceTimeBy(999, TimeUnit.MILLISECONDS)
+    assertNull(page.error)
+    scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS)
+    // the first timeout subscribes again
+    assertEquals(2, subscriptions)
+    assertNull(page.error)
+    scheduler.advanceTimeBy(1000, TimeUnit.MILLISECONDS)
+    assertTrue(page.error is TimeoutException)
+  }
+
+  @Test
+  fun retries_startOverAfterEveryPage() {
+    val failing = mutableSetOf(5, 15, 25)
+    val source = Flowable.range(0, 1000).map { if (failing.remove(it)) throw IOException("flaky") else it }
+    val dataSource = FlowableDataSource(counted(source), 1)
+    val pages = listOf(dataSource.load(0), dataSource.load(10), dataSource.load(20))
+    for ((i, page) in pages.withIndex()) {
+      assertNull(page.error)
+      assertEquals((i * 10 until i * 10 + 10).toList(), page.items)
+    }
+    assertEquals(4, subscriptions)
+  }
+
+  @Test
+  fun errorAfterTheRetries_failsEveryWaitingLoad() {
+    val dataSource = FlowableDataSource(counted(Flowable.error(IOException("offline"))), 2)
+    val page = dataSource.load(0)
+    assertTrue(page.error is IOException)
+    assertEquals(3, subscriptions)
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.util.Random
+
+class LongMapTest {
+
+  @Test
+  fun put_returnsThePreviousValue() {
+    val map = LongMap<String>()
+    assertNull(map.put(7, "a"))
+    assertEquals("a", map.put(7, "b"))
+    assertEquals("b", map[7])
+    assertEquals(1, map.size)
+  }
+
+  @Test
+  fun keysAtTheEndsOfTheRange() {
+    val map = LongMap<String>()
+    map.put(Long.MIN_VALUE, "min")
+    map.put(Long.MIN_VALUE + 1, "synthetic")
+    map.put(Long.MAX_VALUE, "max")
+    map.put(0, "zero")
+    assertEquals("min", map[Long.MIN_VALUE])
+    assertEquals("synthetic", map[Long.MIN_VALUE + 1])
+    assertEquals("max", map[Long.MAX_VALUE])
+    assertEquals("zero", map[0])
+    assertNull(map[1])
+  }
+
+  @Test
+  fun decreasingKeys_growTheTable() {
+    val map = LongMap<Long>(4)
+    for (id in 10_000L downTo 1L) map.put(id, id)
+    assertEquals(10_000, map.size)
+    for (id in 1L..10_000L) assertEquals(id, map[id])
+  }
+
+  @Test
+  fun remove_keepsTheKeysProbedPastIt() {
+    val map = LongMap<Long>()
+    // keys differing only in their high bits share the low bits the table would be indexed by
+    val keys = (0L until 12L).map { it shl 40 }
+    for (key in keys) map.put(key, key)
+    for (key in keys.filterIndexed { i, _ -> i % 2 == 0 }) assertEquals(key, map.remove(key))
+    for ((i, key) in keys.withIndex()) assertEquals(if (i % 2 == 0) null else key, map[key])
+    assertNull(map.remove(keys[0]))
+    assertEquals(6, map.size)
+  }
+
+  @Test
+  fun clear_thenReuse() {
+    val map = LongMap<String>()
+    map.put(1, "a")
+    map.clear()
+    assertEquals(0, map.size)
+    assertNull(map[1])
+    map.put(1, "b")
+    assertEquals("b", map[1])
+  }
+
+  @Test
+  fun randomOperations_matchHashMap() {
+    val random = Random(42)
+    val map = LongMap<Int>()
+    val expected = HashMap<Long, Int>()
+    repeat(50_000) { step ->
+      val key = if (random.nextInt(4) == 0) Long.MIN_VALUE + random.nextInt(300)
+      else random.nextInt(3000).toLong() shl (if (random.nextBoolean()) 32 else 0)
+      when (random.nextInt(3)) {
+        0 -> assertEquals(expected.put(key, step), map.put(key, step))
+        1 -> assertEquals(expected.remove(key), map.remove(key))
+        else -> assertEquals(expected[key], map[key])
+      }
+      assertEquals(expected.size, map.size)
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class PlaceholdersTest {
+
+  private val source = FakeDataSource()
+  private val changes = ArrayList<Pair<Int, Int>>()
+  private val placeholders = Placeholders(source, 20, 2, { it() }) { start, count -> changes.add(start to count) }
+
+  @Test
+  fun request_loadsThePageOnce() {
+    placeholders.reset(100)
+    assertNull(placeholders[25])
+    placeholders.request(25)
+    placeholders.request(30)
+    assertEquals(listOf(20), source.skips())
+    source.complete(0)
+    assertEquals(25, placeholders[25]!!.t)
+    assertEquals(listOf(20 to 20), changes)
+    placeholders.request(39)
+    assertEquals(1, source.loads.size)
+  }
+
+  @Test
+  fun prefetch_loadsTheNeighbourOnTheSideOfTheRow() {
+    placeholders.reset(100)
+    // the first half of a page loads the page before it
+    placeholders.prefetch(45)
+    assertEquals(listOf(40, 20), source.skips())
+    // the second half loads the page after it
+    placeholders.prefetch(55)
+    assertEquals(listOf(40, 20, 60), source.skips())
+  }
+
+  @Test
+  fun request_ignoresPositionsOutsideTheList() {
+    placeholders.reset(30)
+    placeholders.request(-1)
+    placeholders.request(30)
+    assertEquals(0, source.loads.size)
+  }
+
+  @Test
+  fun lastPage_isCutToTheCount() {
+    placeholders.reset(45)
+    placeholders.request(44)
+    source.complete(0)
+    assertEquals(44, placeholders[44]!!.t)
+    assertEquals(listOf(40 to 5), changes)
+  }
+
+  @Test
+  fun leastRecentlyUsedPage_isDropped() {
+    placeholders.reset(100)
+    for (position in listOf(0, 20, 40)) {
+      placeholders.request(position)
+      source.complete(source.loads.size - 1)
+    }
+    assertNull(placeholders[0])
+    assertEquals(20, placeholders[20]!!.t)
+    assertEquals(listOf(0 to 20, 20 to 20, 40 to 20, 0 to 20), changes)
+  }
+
+  @Test
+  fun pageLoadedBeforeReset_isDropped() {
+    placeholders.reset(100)
+    placeholders.request(0)
+    placeholders.reset(100)
+    source.complete(0)
+    assertNull(placeholders[0])
+    assertEquals(0, changes.size)
+  }
+
+  @Test
+  fun failedPage_isRequestedAgain() {
+    placeholders.reset(100)
+    placeholders.request(0)
+    source.fail(0)
+    placeholders.request(0)
+    assertEquals(listOf(0, 0), source.skips())
+  }
+}
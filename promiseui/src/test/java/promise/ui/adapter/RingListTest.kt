@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+class RingListTest {
+
+  @Test
+  fun addFirst_wrapsAroundTheArray() {
+    val list = RingList<Int>(8)
+    for (i in 0 until 5) list.addLast(i)
+    for (i in 1..3) list.addFirst(-i)
+    assertEquals(listOf(-3, -2, -1, 0, 1, 2, 3, 4), list)
+  }
+
+  @Test
+  fun grows_keepingOrderAcrossTheWrap() {
+    val list = RingList<Int>(8)
+    for (i in 0 until 4) list.addLast(i)
+    for (i in 1..4) list.addFirst(-i)
+    // the head has wrapped to the end of the array when it has to grow
+    list.addLast(4)
+    list.addFirst(-5)
+    assertEquals((-5..4).toList(), list)
+  }
+
+  @Test
+  fun addAll_atEitherEnd() {
+    val list = RingList<Int>(8)
+    list.addAll(listOf(3, 4, 5))
+    list.addAll(0, listOf(0, 1, 2))
+    list.addAll(listOf(6, 7, 8, 9))
+    assertEquals((0..9).toList(), list)
+  }
+
+  @Test
+  fun removeAt_movesTheShorterSide() {
+    val list = RingList<Int>(8)
+    for (i in 0 until 8) list.addLast(i)
+    assertEquals(1, list.removeAt(1))
+    assertEquals(6, list.removeAt(5))
+    assertEquals(0, list.removeAt(0))
+    assertEquals(7, list.removeAt(list.size - 1))
+    assertEquals(listOf(2, 3, 4, 5), list)
+  }
+
+  @Test(expected = IndexOutOfBoundsException::class)
+  fun get_outOfRange() {
+    val list = RingList<Int>()
+    list.addLast(0)
+    list[1]
+  }
+
+  @Test
+  fun clear_thenReuse() {
+    val list = RingList<Int>(8)
+    for (i in 0 until 6) list.addFirst(i)
+    list.clear()
+    assertEquals(0, list.size)
+    list.addLast(1)
+    list.addFirst(0)
+    assertEquals(listOf(0, 1), list)
+  }
+
+  @Test
+  fun randomOperations_matchArrayList() {
+    val random = Random(42)
+    val list = RingList<Int>(8)
+    val expected = ArrayList<Int>()
+    repeat(5000) { step ->
+      when (random.nextInt(6)) {
+        0 -> {
+          list.addFirst(step)
+          expected.add(0, step)
+        }
+        1 -> {
+          list.addLast(step)
+          expected.add(step)
+        }
+        2 -> {
+          val index = random.nextInt(expected.size + 1)
+          list.add(index, step)
+          expected.add(index, step)
+        }
+        3 -> {
+          val index = random.nextInt(expected.size + 1)
+          val batch = List(random.nextInt(5)) { step * 10 + it }
+          list.addAll(index, batch)
+          expected.addAll(index, batch)
+        }
+        4 -> if (expected.isNotEmpty()) {
+          val index = random.nextInt(expected.size)
+          assertEquals(expected.removeAt(index), list.removeAt(index))
+        }
+        5 -> if (expected.isNotEmpty()) {
+          val index = random.nextInt(expected.size)
+          assertEquals(expected.set(index, -step), list.set(index, -step))
+        }
+      }
+      assertEquals(expected.size, list.size)
+    }
+    assertEquals(expected, list)
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017, Peter Vincent
+ * Licensed under the Apache License, Version 2.0, Android Promise.
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package promise.ui.adapter
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class SearchIndexTest {
+
+  private class Item(var key: String) : IndexedSearchable {
+    override fun searchKey(): String = key
+
+    override fun toString(): String = key
+  }
+
+  // builds run when the test says so
+  private val builds = ArrayList<() -> Unit>()
+  private val index = SearchIndex<Item> { builds.add(it) }
+
+  private fun build() {
+    val pending = ArrayList(builds)
+    builds.clear()
+    pending.forEach { it() }
+  }
+
+  @Test
+  fun query_isNullUntilBuilt() {
+    index.rebuild(listOf(Item("apple")))
+    assertNull(index.query("app"))
+    build()
+    assertEquals(1, index.query("app")!!.size)
+  }
+
+  @Test
+  fun query_matchesKeysIgnoringCaseInAdapterOrder() {
+    val items = listOf(Item("Green Apple"), Item("banana"), Item("pineapple"), Item("APPLE pie"))
+    index.rebuild(items)
+    build()
+    assertEquals(listOf(items[0], items[2], items[3]), index.query("apple"))
+    // queries shorter than a trigram scan the keys
+    assertEquals(listOf(items[1]), index.query("na"))
+    assertEquals(emptyList<Item>(), index.query("cherry"))
+  }
+
+  @Test
+  fun query_checksCandidatesSharingOnlyTheTrigrams() {
+    val items = listOf(Item("abc xbcd"), Item("abcd"))
+    index.rebuild(items)
+    build()
+    assertEquals(listOf(items[1]), index.query("abcd"))
+  }
+
+  @Test
+  fun changesMadeWhileBuilding_areReplayed() {
+    val first = Item("one")
+    val second = Item("one more")
+    val head = Item("one at the head")
+    index.rebuild(listOf(first))
+    index.add(second, false)
+    index.add(head, true)
+    index.remove(first)
+    build()
+    assertEquals(listOf(head, second), index.query("one"))
+  }
+
+  @Test
+  fun newerRebuild_replacesAnOlderOne() {
+    val stale = Item("stale")
+    val fresh = Item("fresh")
+    index.rebuild(listOf(stale))
+    index.rebuild(listOf(fresh))
+    build()
+    assertEquals(emptyList<Item>(), index.query("stale"))
+    assertEquals(listOf(fresh), index.query("fresh"))
+  }
+
+  @Test
+  fun replace_indexesTheNewKeyInTheSamePlace() {
+    val items = listOf(Item("red one"), Item("red two"), Item("red three"))
+    index.rebuild(items)
+    build()
+    items[1].key = "blue two"
+    index.replace(items[1], items[1])
+    val copy = Item("red copy")
+    index.replace(items[0], copy)
+    assertEquals(listOf(copy, items[2]), index.query("red"))
+    assertEquals(listOf(items[1]), index.query("blue"))
+    assertEquals(emptyList<Item>(), index.query("one"))
+  }
+
+  @Test
+  fun removingMostItems_keepsQueriesCorrect() {
+    val items = List(100) { Item("item $it") }
+    index.rebuild(items)
+    build()
+    for (i in 0 until 90) index.remove(items[i])
+    assertEquals(items.subList(90, 100), index.query("item"))
+    assertEquals(listOf(items[95]), index.query("item 95"))
+  }
+
+  @Test
+  fun itemsThatAreNotIndexed_leaveQueriesToAScan() {
+    val index = SearchIndex<Any> { builds.add(it) }
+    val indexed = Item("indexed")
+    val plain = Any()
+    index.rebuild(listOf(indexed, plain))
+    build()
+    assertNull(index.query("indexed"))
+    index.remove(plain)
+    assertEquals(listOf(indexed), index.query("indexed"))
+    index.add(plain, false)
+    assertNull(index.query("indexed"))
+    index.clear()
+    assertEquals(emptyList<Any>(), index.query("indexed"))
+  }
+
+  @Test
+  fun clear_dropsEveryItem() {
+    index.rebuild(listOf(Item("gone")))
+    build()
+    index.clear()
+    assertEquals(emptyList<Item>(), index.query("gone"))
+  }
+}